@@ -0,0 +1,123 @@
+package net.rms.xrain.whitelistrms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// 登录检查的准入控制。同时进行的检查数不超过并发上限，超出的在队列中等待，
+// 队列已满或等待超过期限时立即拒绝。并发上限按AIMD根据数据库耗时自动调整：
+// 检查耗时低于目标时逐步增加，超过目标或出错时按比例减少
+public class AdmissionController {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long queueTimeoutMs;
+    private final long latencyTargetNanos;
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, int maxQueueSize,
+                               long queueTimeoutMs, long latencyTargetMs) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.maxQueueSize = Math.max(0, maxQueueSize);
+        this.queueTimeoutMs = Math.max(1, queueTimeoutMs);
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    // 获取许可。有空闲名额时立即完成；队列已满或等待超时时以 RejectedExecutionException 失败
+    public CompletableFuture<Permit> acquire() {
+        Waiter waiter;
+        synchronized (this) {
+            if (inFlight < (int) limit && queue.isEmpty()) {
+                inFlight++;
+                return CompletableFuture.completedFuture(new Permit(inFlight));
+            }
+            if (queue.size() >= maxQueueSize) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("login queue is full"));
+            }
+            waiter = new Waiter();
+            queue.addLast(waiter);
+        }
+
+        CompletableFuture.delayedExecutor(queueTimeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            boolean expired;
+            synchronized (this) {
+                expired = queue.remove(waiter);
+            }
+            if (expired) {
+                waiter.future.completeExceptionally(new RejectedExecutionException("login queue wait timed out"));
+            }
+        });
+        return waiter.future;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private void release(Permit permit, boolean dropped) {
+        long latencyNanos = System.nanoTime() - permit.startNanos;
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            inFlight--;
+            if (dropped || latencyNanos > latencyTargetNanos) {
+                // 上次减少之前开始的检查不再重复减少，避免一批慢请求把上限一次压到最低
+                if (permit.startNanos - lastDecreaseNanos > 0) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    lastDecreaseNanos = System.nanoTime();
+                }
+            } else if (permit.inFlightAtStart * 2 >= limit) {
+                // 每个上限周期增加1；只有在并发较高时才增加，空闲时上限不会无限增长
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            while (inFlight < (int) limit && !queue.isEmpty()) {
+                inFlight++;
+                granted.add(queue.pollFirst());
+            }
+        }
+        for (Waiter waiter : granted) {
+            waiter.future.complete(new Permit(getInFlight()));
+        }
+    }
+
+    public class Permit {
+        private final long startNanos = System.nanoTime();
+        private final int inFlightAtStart;
+        private boolean released;
+
+        private Permit(int inFlightAtStart) {
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        // 检查结束后归还许可，dropped 表示检查因数据库错误或超时失败
+        public void release(boolean dropped) {
+            if (released) {
+                return;
+            }
+            released = true;
+            AdmissionController.this.release(this, dropped);
+        }
+    }
+
+    private static class Waiter {
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+    }
+}
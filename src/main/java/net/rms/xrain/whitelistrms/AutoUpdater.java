@@ -1,8 +1,7 @@
 package net.rms.xrain.whitelistrms;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.slf4j.Logger;
 
 import java.io.*;
@@ -10,49 +9,53 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 public class AutoUpdater {
     private static final String GITHUB_REPO = "RMS-Server/whitelistRMS";
     
-    // 默认GitHub URLs
+    // GitHub URLs，实际请求地址由 MirrorSelector 按镜像改写
     private static final String DEFAULT_VERSION_URL = "https://raw.githubusercontent.com/" + GITHUB_REPO + "/master/plugin.version";
     private static final String DEFAULT_RELEASES_URL = "https://api.github.com/repos/" + GITHUB_REPO + "/releases/latest";
     
-    // 国内镜像URLs
-    private static final String MIRROR_VERSION_URL = "https://ghproxy.com/https://raw.githubusercontent.com/" + GITHUB_REPO + "/master/plugin.version";
-    private static final String MIRROR_RELEASES_URL = "https://ghproxy.com/https://api.github.com/repos/" + GITHUB_REPO + "/releases/latest";
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 5;
+    private static final int BUFFER_SIZE = 64 * 1024;
     
     private final HttpClient httpClient;
     private final Logger logger;
     private final Path pluginPath;
     private final Path dataDirectory;
+    private final HttpValidatorCache validatorCache;
+    private final MirrorSelector mirrorSelector;
+    private final Executor executor;
     private String currentVersion;
-    private boolean useMirror;
-    private String customMirrorUrl;
+    private int backupRetention = 3;
     
-    public AutoUpdater(HttpClient httpClient, Logger logger, Path pluginPath, Path dataDirectory) {
+    // executor 执行更新检查、下载和镜像的对冲请求。检查和下载会阻塞等待对冲请求的结果，
+    // 因此 executor 不能有并发上限，否则对冲请求可能排在等待它的任务后面
+    public AutoUpdater(HttpClient httpClient, Logger logger, Path pluginPath, Path dataDirectory, List<String> mirrors, long hedgeDelayMs, Executor executor) {
         this.httpClient = httpClient;
+        this.executor = executor;
         this.logger = logger;
         this.pluginPath = pluginPath;
         this.dataDirectory = dataDirectory;
+        this.validatorCache = new HttpValidatorCache(logger, dataDirectory.resolve("update-cache.properties"));
+        this.mirrorSelector = new MirrorSelector(httpClient, logger, mirrors, hedgeDelayMs, executor);
         this.currentVersion = getCurrentVersion();
-        this.useMirror = false;
-        this.customMirrorUrl = null;
-    }
-    
-    public AutoUpdater(HttpClient httpClient, Logger logger, Path pluginPath, Path dataDirectory, boolean useMirror, String customMirrorUrl) {
-        this.httpClient = httpClient;
-        this.logger = logger;
-        this.pluginPath = pluginPath;
-        this.dataDirectory = dataDirectory;
-        this.currentVersion = getCurrentVersion();
-        this.useMirror = useMirror;
-        this.customMirrorUrl = customMirrorUrl;
     }
     
     private String getCurrentVersion() {
@@ -73,28 +76,8 @@ public class AutoUpdater {
         return "1.1.1-SNAPSHOT";
     }
     
-    private String getVersionUrl() {
-        if (customMirrorUrl != null && !customMirrorUrl.isEmpty()) {
-            return customMirrorUrl + "/raw.githubusercontent.com/" + GITHUB_REPO + "/master/plugin.version";
-        }
-        return useMirror ? MIRROR_VERSION_URL : DEFAULT_VERSION_URL;
-    }
-    
-    private String getReleasesUrl() {
-        if (customMirrorUrl != null && !customMirrorUrl.isEmpty()) {
-            return customMirrorUrl + "/api.github.com/repos/" + GITHUB_REPO + "/releases/latest";
-        }
-        return useMirror ? MIRROR_RELEASES_URL : DEFAULT_RELEASES_URL;
-    }
-    
-    private String getMirrorDownloadUrl(String originalUrl) {
-        if (customMirrorUrl != null && !customMirrorUrl.isEmpty()) {
-            return originalUrl.replace("https://github.com/", customMirrorUrl + "/github.com/");
-        }
-        if (useMirror) {
-            return "https://ghproxy.com/" + originalUrl;
-        }
-        return originalUrl;
+    public void setBackupRetention(int backupRetention) {
+        this.backupRetention = Math.max(1, backupRetention);
     }
     
     public CompletableFuture<VersionCheckResult> checkForUpdates() {
@@ -102,15 +85,26 @@ public class AutoUpdater {
             try {
                 logger.info("正在检查更新...");
                 
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(getVersionUrl()))
-                        .timeout(Duration.ofSeconds(10))
-                        .build();
+                // 同时向多个镜像请求，使用最先成功的响应
+                MirrorSelector.MirrorResponse<String> result = mirrorSelector.race(DEFAULT_VERSION_URL,
+                        url -> validatorCache.applyValidators(HttpRequest.newBuilder(), url)
+                                .uri(URI.create(url))
+                                .timeout(Duration.ofSeconds(10))
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString()).get();
+                String versionUrl = result.getUrl();
+                HttpResponse<String> response = result.getResponse();
                 
-                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                String remoteVersionContent = null;
+                if (response.statusCode() == 304) {
+                    // 远程版本文件未变化，使用缓存内容
+                    remoteVersionContent = validatorCache.getCachedValue(versionUrl);
+                } else if (response.statusCode() == 200) {
+                    remoteVersionContent = response.body().trim();
+                    validatorCache.store(versionUrl, response, remoteVersionContent);
+                }
                 
-                if (response.statusCode() == 200) {
-                    String remoteVersionContent = response.body().trim();
+                if (remoteVersionContent != null) {
                     String remoteVersion;
                     
                     if (remoteVersionContent.startsWith("V ")) {
@@ -136,7 +130,7 @@ public class AutoUpdater {
                 logger.error("检查更新时发生错误", e);
                 return new VersionCheckResult(false, null, e.getMessage());
             }
-        });
+        }, executor);
     }
     
     public CompletableFuture<Boolean> downloadAndUpdate(String version) {
@@ -145,55 +139,44 @@ public class AutoUpdater {
                 logger.info("正在下载版本 " + version + "...");
                 
                 // 获取最新发布信息
-                HttpRequest releaseRequest = HttpRequest.newBuilder()
-                        .uri(URI.create(getReleasesUrl()))
-                        .timeout(Duration.ofSeconds(30))
-                        .build();
-                
-                HttpResponse<String> releaseResponse = httpClient.send(releaseRequest, HttpResponse.BodyHandlers.ofString());
+                MirrorSelector.MirrorResponse<InputStream> result = mirrorSelector.race(DEFAULT_RELEASES_URL,
+                        url -> validatorCache.applyValidators(HttpRequest.newBuilder(), url)
+                                .uri(URI.create(url))
+                                .timeout(Duration.ofSeconds(30))
+                                .build(),
+                        HttpResponse.BodyHandlers.ofInputStream()).get();
+                String releasesUrl = result.getUrl();
+                HttpResponse<InputStream> releaseResponse = result.getResponse();
                 
-                if (releaseResponse.statusCode() != 200) {
+                ReleaseAsset asset;
+                if (releaseResponse.statusCode() == 304) {
+                    releaseResponse.body().close();
+                    asset = ReleaseAsset.decode(validatorCache.getCachedValue(releasesUrl));
+                } else if (releaseResponse.statusCode() == 200) {
+                    try (InputStream in = releaseResponse.body()) {
+                        asset = findJarAsset(in);
+                    }
+                    validatorCache.store(releasesUrl, releaseResponse, asset != null ? asset.encode() : null);
+                } else {
+                    releaseResponse.body().close();
                     logger.error("获取发布信息失败，HTTP状态码: " + releaseResponse.statusCode());
                     return false;
                 }
                 
-                JsonObject release = JsonParser.parseString(releaseResponse.body()).getAsJsonObject();
-                JsonArray assets = release.getAsJsonArray("assets");
-                
-                String downloadUrl = null;
-                for (int i = 0; i < assets.size(); i++) {
-                    JsonObject asset = assets.get(i).getAsJsonObject();
-                    String name = asset.get("name").getAsString();
-                    if (name.endsWith(".jar") && !name.contains("sources")) {
-                        downloadUrl = getMirrorDownloadUrl(asset.get("browser_download_url").getAsString());
-                        break;
-                    }
-                }
-                
-                if (downloadUrl == null) {
+                if (asset == null) {
                     logger.error("未找到可下载的JAR文件");
                     return false;
                 }
                 
-                logger.info("下载地址: " + downloadUrl);
-                
-                // 下载新版本
-                HttpRequest downloadRequest = HttpRequest.newBuilder()
-                        .uri(URI.create(downloadUrl))
-                        .timeout(Duration.ofMinutes(5))
-                        .build();
-                
-                HttpResponse<InputStream> downloadResponse = httpClient.send(downloadRequest, HttpResponse.BodyHandlers.ofInputStream());
-                
-                if (downloadResponse.statusCode() != 200) {
-                    logger.error("下载失败，HTTP状态码: " + downloadResponse.statusCode());
-                    return false;
+                logger.info("下载地址: " + asset.url);
+                if (asset.sha256 == null) {
+                    logger.warn("发布信息中没有SHA-256摘要，将跳过完整性校验");
                 }
                 
-                // 保存到临时文件
+                // 下载到临时文件，中断后从断点继续
                 Path tempFile = dataDirectory.resolve("whitelistRMS-" + version + ".jar.tmp");
-                try (InputStream in = downloadResponse.body()) {
-                    Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                if (!downloadWithResume(tempFile, asset)) {
+                    return false;
                 }
                 
                 // 创建更新脚本
@@ -206,7 +189,147 @@ public class AutoUpdater {
                 logger.error("下载更新时发生错误", e);
                 return false;
             }
-        });
+        }, executor);
+    }
+    
+    private boolean downloadWithResume(Path tempFile, ReleaseAsset asset) throws Exception {
+        // 按镜像排名轮换下载源，断点在不同镜像之间同样有效
+        List<String> mirrors = mirrorSelector.rankedMirrors();
+        for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+            String mirror = mirrors.get((attempt - 1) % mirrors.size());
+            String downloadUrl = MirrorSelector.resolve(mirror, asset.url);
+            long existing = Files.exists(tempFile) ? Files.size(tempFile) : 0;
+            if (asset.size > 0 && existing > asset.size) {
+                Files.delete(tempFile);
+                existing = 0;
+            }
+            
+            // 已下载的部分需要先计入摘要
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (existing > 0) {
+                try (InputStream in = Files.newInputStream(tempFile)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            
+            if (asset.size <= 0 || existing < asset.size) {
+                HttpRequest.Builder builder = HttpRequest.newBuilder()
+                        .uri(URI.create(downloadUrl))
+                        .timeout(Duration.ofMinutes(5));
+                if (existing > 0) {
+                    builder.header("Range", "bytes=" + existing + "-");
+                    logger.info("从断点继续下载，已下载 " + existing + " 字节");
+                }
+                
+                try {
+                    HttpResponse<InputStream> response = httpClient.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+                    boolean append;
+                    if (response.statusCode() == 206 && existing > 0 && rangeStartsAt(response, existing)) {
+                        append = true;
+                    } else if (response.statusCode() == 200) {
+                        // 服务器不支持Range，从头开始
+                        append = false;
+                        digest.reset();
+                    } else {
+                        response.body().close();
+                        mirrorSelector.recordFailure(mirror);
+                        logger.warn("下载失败，HTTP状态码: " + response.statusCode() + " (第 " + attempt + " 次尝试)");
+                        if (response.statusCode() == 416) {
+                            Files.deleteIfExists(tempFile);
+                        }
+                        continue;
+                    }
+                    
+                    try (InputStream in = response.body();
+                         OutputStream out = append
+                                 ? Files.newOutputStream(tempFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                                 : Files.newOutputStream(tempFile)) {
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                            out.write(buffer, 0, read);
+                        }
+                    }
+                } catch (IOException e) {
+                    mirrorSelector.recordFailure(mirror);
+                    logger.warn("下载中断 (第 " + attempt + " 次尝试, " + downloadUrl + "): " + e.getMessage());
+                    Thread.sleep(Math.min(30_000L, 1000L << attempt));
+                    continue;
+                }
+            }
+            
+            if (asset.size > 0 && Files.size(tempFile) != asset.size) {
+                logger.warn("下载的文件大小不完整: " + Files.size(tempFile) + "/" + asset.size);
+                continue;
+            }
+            
+            String actual = HexFormat.of().formatHex(digest.digest());
+            if (asset.sha256 != null && !asset.sha256.equalsIgnoreCase(actual)) {
+                logger.error("SHA-256校验失败，期望 " + asset.sha256 + "，实际 " + actual);
+                Files.deleteIfExists(tempFile);
+                continue;
+            }
+            
+            return true;
+        }
+        
+        logger.error("下载失败，已达到最大重试次数");
+        return false;
+    }
+    
+    private boolean rangeStartsAt(HttpResponse<?> response, long offset) {
+        // Content-Range: bytes <start>-<end>/<total>
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        return contentRange.startsWith("bytes " + offset + "-");
+    }
+    
+    // 流式读取发布信息，找到第一个JAR资源后立即返回，不构建完整的JSON树
+    private ReleaseAsset findJarAsset(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"assets".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String name = null;
+                String url = null;
+                String sha256 = null;
+                long size = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if ("name".equals(field) && reader.peek() == JsonToken.STRING) {
+                        name = reader.nextString();
+                    } else if ("browser_download_url".equals(field) && reader.peek() == JsonToken.STRING) {
+                        url = reader.nextString();
+                    } else if ("digest".equals(field) && reader.peek() == JsonToken.STRING) {
+                        // GitHub的格式为 "sha256:<hex>"
+                        String value = reader.nextString();
+                        if (value.startsWith("sha256:")) {
+                            sha256 = value.substring("sha256:".length());
+                        }
+                    } else if ("size".equals(field) && reader.peek() == JsonToken.NUMBER) {
+                        size = reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (name != null && url != null && name.endsWith(".jar") && !name.contains("sources")) {
+                    return new ReleaseAsset(url, sha256, size);
+                }
+            }
+            return null;
+        }
+        return null;
     }
     
     private void createUpdateScript(Path newJarPath, String version) throws IOException {
@@ -247,16 +370,39 @@ public class AutoUpdater {
                 Path newJar = Path.of(newJarPath);
                 Path currentJar = Path.of(currentJarPath);
                 
-                if (Files.exists(newJar)) {
-                    // 备份当前版本
-                    Path backup = currentJar.getParent().resolve("whitelistRMS-backup.jar");
-                    Files.copy(currentJar, backup, StandardCopyOption.REPLACE_EXISTING);
+                // 先把新版本移动到当前JAR旁边，保证最后一步是同目录内的重命名。
+                // 上次应用更新时可能在移动到暂存位置后中断，此时新版本只在暂存位置
+                Path staged = currentJar.resolveSibling(currentJar.getFileName() + ".new");
+                if (Files.exists(newJar) || Files.exists(staged)) {
+                    if (Files.exists(newJar)) {
+                        moveFile(newJar, staged);
+                    }
                     
-                    // 应用更新
-                    Files.copy(newJar, currentJar, StandardCopyOption.REPLACE_EXISTING);
+                    try {
+                        // 备份当前版本（优先使用硬链接，不复制文件内容）
+                        Path backupDir = dataDirectory.resolve("backups");
+                        Files.createDirectories(backupDir);
+                        Path backup = backupDir.resolve("whitelistRMS-" + currentVersion + "-" + System.currentTimeMillis() + ".jar.bak");
+                        try {
+                            Files.createLink(backup, currentJar);
+                        } catch (UnsupportedOperationException | IOException e) {
+                            Files.copy(currentJar, backup, StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        pruneBackups(backupDir);
+                        
+                        // 应用更新
+                        moveFile(staged, currentJar);
+                    } catch (IOException e) {
+                        // 把新版本放回更新脚本记录的位置，下次启动时重试
+                        try {
+                            moveFile(staged, newJar);
+                        } catch (IOException rollback) {
+                            e.addSuppressed(rollback);
+                        }
+                        throw e;
+                    }
                     
-                    // 清理临时文件
-                    Files.deleteIfExists(newJar);
+                    // 清理更新脚本
                     Files.deleteIfExists(updateScript);
                     
                     // 更新版本文件
@@ -273,6 +419,29 @@ public class AutoUpdater {
         }
     }
     
+    private void moveFile(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private void pruneBackups(Path backupDir) throws IOException {
+        List<Path> backups = new ArrayList<>();
+        try (Stream<Path> files = Files.list(backupDir)) {
+            files.filter(file -> file.getFileName().toString().endsWith(".jar.bak")).forEach(backups::add);
+        }
+        if (backups.size() <= backupRetention) {
+            return;
+        }
+        
+        backups.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        for (int i = 0; i < backups.size() - backupRetention; i++) {
+            Files.deleteIfExists(backups.get(i));
+        }
+    }
+    
     private void updateVersionFile(String version) throws IOException {
         Path versionFile = pluginPath.getParent().resolve("plugin.version");
         Files.writeString(versionFile, "V " + version);
@@ -307,6 +476,38 @@ public class AutoUpdater {
         }
     }
     
+    private static class ReleaseAsset {
+        private final String url;
+        private final String sha256;
+        private final long size;
+        
+        private ReleaseAsset(String url, String sha256, long size) {
+            this.url = url;
+            this.sha256 = sha256;
+            this.size = size;
+        }
+        
+        // 缓存格式: <url> <sha256或-> <size>
+        private String encode() {
+            return url + " " + (sha256 != null ? sha256 : "-") + " " + size;
+        }
+        
+        private static ReleaseAsset decode(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] parts = value.split(" ");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                return new ReleaseAsset(parts[0], "-".equals(parts[1]) ? null : parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+    
     public static class VersionCheckResult {
         private final boolean hasUpdate;
         private final String latestVersion;
@@ -0,0 +1,86 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+// 所有阻塞的 JDBC / HTTP 调用都通过这里执行。虚拟线程模式下每个任务一个虚拟线程，
+// 并用信号量把同时执行的阻塞任务数限制在连接池大小以内
+public class BlockingExecutor implements Executor {
+    private final Executor delegate;
+    private final ExecutorService virtualExecutor;
+    private final Semaphore permits;
+
+    private BlockingExecutor(Executor delegate, ExecutorService virtualExecutor, Semaphore permits) {
+        this.delegate = delegate;
+        this.virtualExecutor = virtualExecutor;
+        this.permits = permits;
+    }
+
+    public static BlockingExecutor create(Logger logger, boolean useVirtualThreads, int concurrency, Executor platformExecutor) {
+        if (useVirtualThreads) {
+            ExecutorService virtualExecutor = newVirtualThreadExecutor(logger);
+            if (virtualExecutor != null) {
+                logger.info("已启用虚拟线程执行模式，阻塞任务并发上限: " + concurrency);
+                return new BlockingExecutor(virtualExecutor, virtualExecutor, new Semaphore(Math.max(1, concurrency)));
+            }
+        }
+        return new BlockingExecutor(platformExecutor, null, null);
+    }
+
+    // 插件以 Java 17 为编译目标，虚拟线程 API 需要通过反射获取
+    private static ExecutorService newVirtualThreadExecutor(Logger logger) {
+        if (Runtime.version().feature() < 21) {
+            logger.warn("虚拟线程需要 Java 21 或更高版本，当前为 Java " + Runtime.version().feature() + "，将使用普通线程");
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "WhitelistRMS-virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("无法创建虚拟线程执行器，将使用普通线程: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    // 不受并发限制的执行器，供 HttpClient 内部回调和不使用数据库连接的任务（如自动更新）使用，
+    // 避免持有许可的线程等待这些任务时死锁；分片同步这类长时间运行的维护任务也在这里执行，不占用定时维护任务的许可
+    public Executor unlimited() {
+        return virtualExecutor != null ? virtualExecutor : delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (permits == null) {
+            delegate.execute(task);
+            return;
+        }
+        delegate.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -72,6 +73,114 @@ public class ConfigManager {
                 }
             }
             
+            // 白名单分组配置
+            if (!config.containsKey("groups")) {
+                config.put("groups", getDefaultGroupsConfig());
+                needsUpdate = true;
+                logger.info("已添加默认白名单分组配置");
+            } else {
+                Map<String, Object> groups = (Map<String, Object>) config.get("groups");
+                if (validateAndFixGroupsConfig(groups)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 启动配置
+            if (!config.containsKey("startup")) {
+                config.put("startup", getDefaultStartupConfig());
+                needsUpdate = true;
+                logger.info("已添加默认启动配置");
+            } else {
+                Map<String, Object> startup = (Map<String, Object>) config.get("startup");
+                if (validateAndFixStartupConfig(startup)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 执行模式配置
+            if (!config.containsKey("execution")) {
+                config.put("execution", getDefaultExecutionConfig());
+                needsUpdate = true;
+                logger.info("已添加默认执行模式配置");
+            } else {
+                Map<String, Object> execution = (Map<String, Object>) config.get("execution");
+                if (validateAndFixExecutionConfig(execution)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 登录追踪配置
+            if (!config.containsKey("tracing")) {
+                config.put("tracing", getDefaultTracingConfig());
+                needsUpdate = true;
+                logger.info("已添加默认登录追踪配置");
+            } else {
+                Map<String, Object> tracing = (Map<String, Object>) config.get("tracing");
+                if (validateAndFixTracingConfig(tracing)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 分片配置
+            if (!config.containsKey("sharding")) {
+                config.put("sharding", getDefaultShardingConfig());
+                needsUpdate = true;
+                logger.info("已添加默认分片配置");
+            } else {
+                Map<String, Object> sharding = (Map<String, Object>) config.get("sharding");
+                if (validateAndFixShardingConfig(sharding)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 连接池配置
+            if (!config.containsKey("pools")) {
+                config.put("pools", getDefaultPoolsConfig());
+                needsUpdate = true;
+                logger.info("已添加默认连接池配置");
+            } else {
+                Map<String, Object> pools = (Map<String, Object>) config.get("pools");
+                if (validateAndFixPoolsConfig(pools)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 登录准入控制配置
+            if (!config.containsKey("admission")) {
+                config.put("admission", getDefaultAdmissionConfig());
+                needsUpdate = true;
+                logger.info("已添加默认登录准入控制配置");
+            } else {
+                Map<String, Object> admission = (Map<String, Object>) config.get("admission");
+                if (validateAndFixAdmissionConfig(admission)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // 写入队列配置
+            if (!config.containsKey("write-behind")) {
+                config.put("write-behind", getDefaultWriteBehindConfig());
+                needsUpdate = true;
+                logger.info("已添加默认写入队列配置");
+            } else {
+                Map<String, Object> writeBehind = (Map<String, Object>) config.get("write-behind");
+                if (validateAndFixWriteBehindConfig(writeBehind)) {
+                    needsUpdate = true;
+                }
+            }
+            
+            // UUID补全配置
+            if (!config.containsKey("uuid-backfill")) {
+                config.put("uuid-backfill", getDefaultUuidBackfillConfig());
+                needsUpdate = true;
+                logger.info("已添加默认UUID补全配置");
+            } else {
+                Map<String, Object> uuidBackfill = (Map<String, Object>) config.get("uuid-backfill");
+                if (validateAndFixUuidBackfillConfig(uuidBackfill)) {
+                    needsUpdate = true;
+                }
+            }
+            
             // 如果有更新，保存配置文件
             if (needsUpdate) {
                 saveConfig();
@@ -94,12 +203,21 @@ public class ConfigManager {
         mysql.put("username", "root");
         mysql.put("password", "root");
         mysql.put("table", "whitelist");
+        mysql.put("query-timeout", 3);
+        mysql.put("socket-timeout", 10000);
+        mysql.put("leak-detection-threshold", 0);
+        mysql.put("replicas", new ArrayList<Map<String, Object>>());
+        mysql.put("replica-max-lag", 5);
+        mysql.put("replica-check-interval", 10);
         return mysql;
     }
     
     private Map<String, Object> getDefaultMessagesConfig() {
         Map<String, Object> messages = new LinkedHashMap<>();
         messages.put("not-whitelisted", "§c你不在白名单中！请联系管理员");
+        messages.put("not-in-group", "§c你没有进入该服务器的权限！");
+        messages.put("starting-up", "§e服务器正在启动中，请稍后再试！");
+        messages.put("server-busy", "§e服务器繁忙，请稍后重试！");
         return messages;
     }
     
@@ -111,9 +229,99 @@ public class ConfigManager {
         updater.put("notify-console", true);
         updater.put("use-mirror", true);
         updater.put("custom-mirror-url", "");
+        updater.put("backup-retention", 3);
+        updater.put("mirrors", new ArrayList<String>());
+        updater.put("hedge-delay-ms", 300);
         return updater;
     }
     
+    private Map<String, Object> getDefaultGroupsConfig() {
+        Map<String, Object> groups = new LinkedHashMap<>();
+        groups.put("enabled", false);
+        groups.put("refresh-interval", 60);
+        groups.put("servers", new LinkedHashMap<String, Object>());
+        return groups;
+    }
+    
+    private Map<String, Object> getDefaultStartupConfig() {
+        Map<String, Object> startup = new LinkedHashMap<>();
+        startup.put("login-wait-ms", 3000);
+        return startup;
+    }
+    
+    private Map<String, Object> getDefaultExecutionConfig() {
+        Map<String, Object> execution = new LinkedHashMap<>();
+        execution.put("virtual-threads", false);
+        return execution;
+    }
+    
+    private Map<String, Object> getDefaultTracingConfig() {
+        Map<String, Object> tracing = new LinkedHashMap<>();
+        tracing.put("slow-login-threshold-ms", 500);
+        return tracing;
+    }
+    
+    private Map<String, Object> getDefaultShardingConfig() {
+        Map<String, Object> sharding = new LinkedHashMap<>();
+        sharding.put("enabled", false);
+        sharding.put("sync-interval", 60);
+        sharding.put("shards", new ArrayList<>());
+        return sharding;
+    }
+    
+    private Map<String, Object> getDefaultPoolsConfig() {
+        Map<String, Object> login = new LinkedHashMap<>();
+        login.put("maximum-size", 10);
+        login.put("minimum-idle", 2);
+        login.put("connection-timeout", 5000);
+        
+        Map<String, Object> maintenance = new LinkedHashMap<>();
+        maintenance.put("maximum-size", 2);
+        maintenance.put("minimum-idle", 0);
+        maintenance.put("connection-timeout", 30000);
+        
+        Map<String, Object> replica = new LinkedHashMap<>();
+        replica.put("maximum-size", 10);
+        replica.put("minimum-idle", 1);
+        replica.put("connection-timeout", 1000);
+        
+        Map<String, Object> pools = new LinkedHashMap<>();
+        pools.put("login", login);
+        pools.put("maintenance", maintenance);
+        pools.put("replica", replica);
+        return pools;
+    }
+    
+    private Map<String, Object> getDefaultAdmissionConfig() {
+        Map<String, Object> admission = new LinkedHashMap<>();
+        admission.put("enabled", true);
+        // 0 表示按登录连接池大小计算
+        admission.put("initial-limit", 0);
+        admission.put("min-limit", 2);
+        admission.put("max-limit", 0);
+        admission.put("max-queue", 100);
+        admission.put("queue-timeout-ms", 2000);
+        admission.put("latency-target-ms", 250);
+        return admission;
+    }
+    
+    private Map<String, Object> getDefaultWriteBehindConfig() {
+        Map<String, Object> writeBehind = new LinkedHashMap<>();
+        writeBehind.put("flush-interval-ms", 5);
+        writeBehind.put("max-batch-size", 500);
+        return writeBehind;
+    }
+    
+    private Map<String, Object> getDefaultUuidBackfillConfig() {
+        Map<String, Object> uuidBackfill = new LinkedHashMap<>();
+        uuidBackfill.put("enabled", false);
+        uuidBackfill.put("interval", 3600);
+        uuidBackfill.put("chunk-size", 100);
+        uuidBackfill.put("chunk-delay-ms", 1000);
+        uuidBackfill.put("lookup-url", "https://api.minecraftservices.com/minecraft/profile/lookup/bulk/byname");
+        return uuidBackfill;
+    }
+    
     private boolean validateAndFixMysqlConfig(Map<String, Object> mysql) {
         boolean updated = false;
         Map<String, Object> defaults = getDefaultMysqlConfig();
@@ -159,11 +367,164 @@ public class ConfigManager {
         return updated;
     }
     
+    private boolean validateAndFixGroupsConfig(Map<String, Object> groups) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultGroupsConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!groups.containsKey(entry.getKey())) {
+                groups.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的白名单分组配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixStartupConfig(Map<String, Object> startup) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultStartupConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!startup.containsKey(entry.getKey())) {
+                startup.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的启动配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixExecutionConfig(Map<String, Object> execution) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultExecutionConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!execution.containsKey(entry.getKey())) {
+                execution.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的执行模式配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixTracingConfig(Map<String, Object> tracing) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultTracingConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!tracing.containsKey(entry.getKey())) {
+                tracing.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的登录追踪配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixShardingConfig(Map<String, Object> sharding) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultShardingConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!sharding.containsKey(entry.getKey())) {
+                sharding.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的分片配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixPoolsConfig(Map<String, Object> pools) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultPoolsConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!(pools.get(entry.getKey()) instanceof Map)) {
+                pools.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的连接池配置: " + entry.getKey());
+                continue;
+            }
+            Map<String, Object> pool = (Map<String, Object>) pools.get(entry.getKey());
+            for (Map.Entry<String, Object> setting : ((Map<String, Object>) entry.getValue()).entrySet()) {
+                if (!pool.containsKey(setting.getKey())) {
+                    pool.put(setting.getKey(), setting.getValue());
+                    updated = true;
+                    logger.info("已添加缺失的连接池配置项: " + entry.getKey() + "." + setting.getKey());
+                }
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixAdmissionConfig(Map<String, Object> admission) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultAdmissionConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!admission.containsKey(entry.getKey())) {
+                admission.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的登录准入控制配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixWriteBehindConfig(Map<String, Object> writeBehind) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultWriteBehindConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!writeBehind.containsKey(entry.getKey())) {
+                writeBehind.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的写入队列配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
+    private boolean validateAndFixUuidBackfillConfig(Map<String, Object> uuidBackfill) {
+        boolean updated = false;
+        Map<String, Object> defaults = getDefaultUuidBackfillConfig();
+        
+        for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+            if (!uuidBackfill.containsKey(entry.getKey())) {
+                uuidBackfill.put(entry.getKey(), entry.getValue());
+                updated = true;
+                logger.info("已添加缺失的UUID补全配置项: " + entry.getKey());
+            }
+        }
+        
+        return updated;
+    }
+    
     private Map<String, Object> getDefaultConfig() {
         Map<String, Object> config = new LinkedHashMap<>();
         config.put("mysql", getDefaultMysqlConfig());
         config.put("messages", getDefaultMessagesConfig());
         config.put("updater", getDefaultUpdaterConfig());
+        config.put("groups", getDefaultGroupsConfig());
+        config.put("startup", getDefaultStartupConfig());
+        config.put("execution", getDefaultExecutionConfig());
+        config.put("tracing", getDefaultTracingConfig());
+        config.put("sharding", getDefaultShardingConfig());
+        config.put("pools", getDefaultPoolsConfig());
+        config.put("admission", getDefaultAdmissionConfig());
+        config.put("write-behind", getDefaultWriteBehindConfig());
+        config.put("uuid-backfill", getDefaultUuidBackfillConfig());
         return config;
     }
     
@@ -0,0 +1,95 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+public class HttpValidatorCache {
+    private static final String ETAG = ".etag";
+    private static final String LAST_MODIFIED = ".last-modified";
+    private static final String VALUE = ".value";
+
+    private final Logger logger;
+    private final Path cacheFile;
+    private final Properties entries = new Properties();
+
+    public HttpValidatorCache(Logger logger, Path cacheFile) {
+        this.logger = logger;
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    private void load() {
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(cacheFile)) {
+            entries.load(in);
+        } catch (IOException e) {
+            logger.warn("无法读取更新缓存文件: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    // 只有存在缓存值时才附加校验头，否则 304 响应无法还原出结果
+    public synchronized HttpRequest.Builder applyValidators(HttpRequest.Builder builder, String url) {
+        if (entries.getProperty(url + VALUE) == null) {
+            return builder;
+        }
+        String etag = entries.getProperty(url + ETAG);
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        String lastModified = entries.getProperty(url + LAST_MODIFIED);
+        if (lastModified != null) {
+            builder.header("If-Modified-Since", lastModified);
+        }
+        return builder;
+    }
+
+    public synchronized String getCachedValue(String url) {
+        return entries.getProperty(url + VALUE);
+    }
+
+    // 保存响应的校验器以及从响应中解析出的值（而不是完整响应体）
+    public synchronized void store(String url, HttpResponse<?> response, String value) {
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        String lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        if (value == null || (etag == null && lastModified == null)) {
+            return;
+        }
+
+        entries.setProperty(url + VALUE, value);
+        if (etag != null) {
+            entries.setProperty(url + ETAG, etag);
+        } else {
+            entries.remove(url + ETAG);
+        }
+        if (lastModified != null) {
+            entries.setProperty(url + LAST_MODIFIED, lastModified);
+        } else {
+            entries.remove(url + LAST_MODIFIED);
+        }
+        save();
+    }
+
+    private void save() {
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                entries.store(out, "WhitelistRMS update cache");
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("无法保存更新缓存文件: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+// 数据库就绪后的登录检查流程：取得准入许可、查询白名单、把用户名更新和临时登录请求交给写入队列，
+// 最后记录分步耗时并按结果归还许可。不依赖 Velocity 的事件对象，登录风暴测试直接驱动这个类
+public class LoginFlow {
+    // 临时登录请求等待审核的时间，超过后标记为超时
+    public static final Duration TEMPORARY_LOGIN_TIMEOUT = Duration.ofSeconds(60);
+    public static final String SERVER_ERROR_MESSAGE = "§c服务器错误，请联系管理员";
+
+    private final Logger logger;
+    private final AdmissionController admissionController;
+    private final WhitelistLookup lookup;
+    private final WriteBehindQueue writeQueue;
+    // 延迟执行任务：任务、延迟时间
+    private final BiConsumer<Runnable, Duration> scheduler;
+    private final String serverBusyMessage;
+    private final long slowLoginThresholdMs;
+
+    public LoginFlow(Logger logger, AdmissionController admissionController, WhitelistLookup lookup, WriteBehindQueue writeQueue,
+                     BiConsumer<Runnable, Duration> scheduler, String serverBusyMessage, long slowLoginThresholdMs) {
+        this.logger = logger;
+        this.admissionController = admissionController;
+        this.lookup = lookup;
+        this.writeQueue = writeQueue;
+        this.scheduler = scheduler;
+        this.serverBusyMessage = serverBusyMessage;
+        this.slowLoginThresholdMs = slowLoginThresholdMs;
+    }
+
+    // 排队等待许可时不占用线程。没有启用准入控制时许可为 null
+    public CompletableFuture<AdmissionController.Permit> acquirePermit(LoginTrace trace) {
+        if (admissionController == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LoginTrace.Step step = trace.begin("admission-wait");
+        return admissionController.acquire().whenComplete((permit, e) -> step.end(e == null ? "admitted" : "shed"));
+    }
+
+    // 在阻塞任务执行器上调用。failure 为取得许可时的异常，此时数据库繁忙，快速拒绝而不是让玩家一直等到连接池超时。
+    // 结束追踪并归还许可，数据库出错时按 dropped 归还，让准入控制降低并发上限
+    public Decision check(String username, UUID playerUuid, LoginTrace trace, AdmissionController.Permit permit, Throwable failure) {
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            logger.warn("Player " + username + " was denied access (server busy: " + cause.getMessage() +
+                    ", limit=" + admissionController.getLimit() + ", queued=" + admissionController.getQueued() + ")");
+            trace.finish("shed", logger, slowLoginThresholdMs);
+            return new Decision("shed", serverBusyMessage, cause);
+        }
+        String outcome = "error";
+        try {
+            Decision decision;
+            try {
+                decision = decide(username, playerUuid, trace);
+            } catch (Exception e) {
+                logger.error("Failed to check whitelist for player " + username, e);
+                decision = new Decision("error", SERVER_ERROR_MESSAGE, e);
+            }
+            outcome = decision.getOutcome();
+            return decision;
+        } finally {
+            trace.finish(outcome, logger, slowLoginThresholdMs);
+            if (permit != null) {
+                permit.release("error".equals(outcome));
+            }
+        }
+    }
+
+    private Decision decide(String username, UUID playerUuid, LoginTrace trace) throws SQLException {
+        WhitelistLookup.Result result = lookup.lookup(username, playerUuid, trace);
+
+        // 如果通过UUID匹配成功，异步更新主库中的用户名，玩家不需要等待；分片上的副本由同步任务更新
+        if (result.getOldUsername() != null) {
+            writeQueue.rename(playerUuid.toString(), username);
+        }
+        if (result.isWhitelisted()) {
+            return Decision.allowed(result.getOldUsername() != null ? "uuid-match" : "username-match");
+        }
+
+        String temporaryStatus = result.getTemporaryStatus();
+        if ("pending".equals(temporaryStatus)) {
+            return Decision.denied("pending", "§e您的临时登录请求正在等待管理员审核中，请稍后再试！");
+        } else if ("rejected".equals(temporaryStatus)) {
+            return Decision.denied("rejected", "§c您的临时登录请求已被管理员拒绝！");
+        } else if ("approved".equals(temporaryStatus)) {
+            // 临时登录请求已通过，允许登录
+            logger.info("Player " + username + " logged in with approved temporary access");
+            return Decision.allowed("approved");
+        }
+
+        // 创建新的临时登录请求（超时的请求会重新变为待审核），由写入队列批量写入
+        writeQueue.requestTemporaryLogin(username);
+        // 到期后将仍未审核的请求标记为超时
+        scheduler.accept(() -> writeQueue.markTimeout(username), TEMPORARY_LOGIN_TIMEOUT);
+        logger.info("Player " + username + " requested temporary login");
+        return Decision.denied("requested",
+                "§e您当前不在白名单中，但是您可以让管理员在白名单管理系统上允许您的临时登录请求！\n" +
+                "§e系统将在60秒内等待管理员的审核，请稍后重新连接服务器查看结果。");
+    }
+
+    // 检查结果：outcome 记录在慢登录日志和JFR事件中，拒绝时附带发给玩家的消息，
+    // 数据库出错或被准入控制拒绝时附带原因
+    public static class Decision {
+        private final String outcome;
+        private final String denyMessage;
+        private final Throwable failure;
+
+        private Decision(String outcome, String denyMessage, Throwable failure) {
+            this.outcome = outcome;
+            this.denyMessage = denyMessage;
+            this.failure = failure;
+        }
+
+        static Decision allowed(String outcome) {
+            return new Decision(outcome, null, null);
+        }
+
+        static Decision denied(String outcome, String denyMessage) {
+            return new Decision(outcome, denyMessage, null);
+        }
+
+        public String getOutcome() {
+            return outcome;
+        }
+
+        public boolean isAllowed() {
+            return denyMessage == null;
+        }
+
+        public String getDenyMessage() {
+            return denyMessage;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.rms.xrain.whitelistrms;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// 记录单次登录检查中每个步骤的耗时。每个步骤都会产生一个JFR事件，
+// 没有开启JFR录制时事件不会被提交，开销只有几次 nanoTime 调用
+public class LoginTrace {
+    private final String username;
+    private final long startNanos;
+    private final List<Step> steps = new ArrayList<>(8);
+    private final LoginCheckEvent checkEvent = new LoginCheckEvent();
+
+    public LoginTrace(String username) {
+        this.username = username;
+        this.startNanos = System.nanoTime();
+        checkEvent.begin();
+    }
+
+    public Step begin(String name) {
+        Step step = new Step(name);
+        steps.add(step);
+        return step;
+    }
+
+    // 结束整次登录检查，耗时超过阈值时输出一行分步耗时
+    public void finish(String outcome, Logger logger, long slowThresholdMs) {
+        for (Step step : steps) {
+            step.end("aborted");
+        }
+        long totalNanos = System.nanoTime() - startNanos;
+
+        checkEvent.end();
+        if (checkEvent.shouldCommit()) {
+            checkEvent.username = username;
+            checkEvent.outcome = outcome;
+            checkEvent.commit();
+        }
+
+        if (slowThresholdMs > 0 && totalNanos >= TimeUnit.MILLISECONDS.toNanos(slowThresholdMs)) {
+            StringBuilder line = new StringBuilder("Slow login for ").append(username)
+                    .append(": ").append(toMillis(totalNanos)).append("ms, outcome=").append(outcome).append(" [");
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                if (i > 0) {
+                    line.append(", ");
+                }
+                line.append(step.name).append('=').append(toMillis(step.durationNanos)).append("ms(").append(step.outcome).append(')');
+            }
+            logger.warn(line.append(']').toString());
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+
+    public class Step {
+        private final String name;
+        private final long stepStartNanos;
+        private final LoginStepEvent event = new LoginStepEvent();
+        private long durationNanos;
+        private String outcome;
+
+        private Step(String name) {
+            this.name = name;
+            this.stepStartNanos = System.nanoTime();
+            event.begin();
+        }
+
+        public void end(String outcome) {
+            if (this.outcome != null) {
+                return;
+            }
+            this.durationNanos = System.nanoTime() - stepStartNanos;
+            this.outcome = outcome;
+            event.end();
+            if (event.shouldCommit()) {
+                event.username = username;
+                event.step = name;
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("net.rms.xrain.whitelistrms.LoginStep")
+    @Label("Whitelist Login Step")
+    @Category("WhitelistRMS")
+    @Description("One database step of a whitelist login check")
+    @StackTrace(false)
+    static class LoginStepEvent extends Event {
+        @Label("Username")
+        String username;
+
+        @Label("Step")
+        String step;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("net.rms.xrain.whitelistrms.LoginCheck")
+    @Label("Whitelist Login Check")
+    @Category("WhitelistRMS")
+    @Description("A complete whitelist login check")
+    @StackTrace(false)
+    static class LoginCheckEvent extends Event {
+        @Label("Username")
+        String username;
+
+        @Label("Outcome")
+        String outcome;
+    }
+}
@@ -0,0 +1,224 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class MirrorSelector {
+    public static final String DIRECT = "github";
+    public static final String GHPROXY = "https://ghproxy.com/{url}";
+
+    // 连续失败后的冷却时间，冷却期内该镜像排在最后
+    private static final long FAILURE_COOLDOWN_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private final HttpClient httpClient;
+    private final Logger logger;
+    private final List<String> mirrors;
+    private final long hedgeDelayMs;
+    private final Executor executor;
+    private final Map<String, MirrorStats> stats = new ConcurrentHashMap<>();
+
+    public MirrorSelector(HttpClient httpClient, Logger logger, List<String> mirrors, long hedgeDelayMs, Executor executor) {
+        this.httpClient = httpClient;
+        this.executor = executor;
+        this.logger = logger;
+        this.mirrors = mirrors.isEmpty() ? List.of(DIRECT) : List.copyOf(mirrors);
+        this.hedgeDelayMs = Math.max(0, hedgeDelayMs);
+        for (String mirror : this.mirrors) {
+            stats.put(mirror, new MirrorStats());
+        }
+    }
+
+    // 兼容旧的 use-mirror / custom-mirror-url 配置
+    public static List<String> defaultMirrors(boolean useMirror, String customMirrorUrl) {
+        List<String> mirrors = new ArrayList<>();
+        if (customMirrorUrl != null && !customMirrorUrl.isEmpty()) {
+            mirrors.add(customMirrorUrl);
+        }
+        if (useMirror) {
+            mirrors.add(GHPROXY);
+        }
+        mirrors.add(DIRECT);
+        return mirrors;
+    }
+
+    // 镜像格式: "github" 直连；包含 {url} 时替换为完整地址；否则按 custom-mirror-url 的方式拼接
+    public static String resolve(String mirror, String originalUrl) {
+        if (mirror == null || mirror.isEmpty() || DIRECT.equalsIgnoreCase(mirror)) {
+            return originalUrl;
+        }
+        if (mirror.contains("{url}")) {
+            return mirror.replace("{url}", originalUrl);
+        }
+        String base = mirror.endsWith("/") ? mirror.substring(0, mirror.length() - 1) : mirror;
+        return base + "/" + originalUrl.replaceFirst("^https?://", "");
+    }
+
+    public List<String> rankedMirrors() {
+        long now = System.currentTimeMillis();
+        List<String> ranked = new ArrayList<>(mirrors);
+        ranked.sort(Comparator
+                .comparing((String mirror) -> stats.get(mirror).isCoolingDown(now))
+                .thenComparingDouble(mirror -> stats.get(mirror).latencyMs));
+        return ranked;
+    }
+
+    public void recordSuccess(String mirror, long latencyMs) {
+        MirrorStats mirrorStats = stats.get(mirror);
+        if (mirrorStats != null) {
+            mirrorStats.recordSuccess(latencyMs);
+        }
+    }
+
+    public void recordFailure(String mirror) {
+        MirrorStats mirrorStats = stats.get(mirror);
+        if (mirrorStats != null) {
+            mirrorStats.recordFailure();
+        }
+    }
+
+    // 按排名依次（间隔 hedgeDelayMs）向各镜像发起请求，第一个成功的响应胜出，其余请求被取消
+    public <T> CompletableFuture<MirrorResponse<T>> race(String originalUrl,
+                                                         Function<String, HttpRequest> requestFactory,
+                                                         HttpResponse.BodyHandler<T> bodyHandler) {
+        List<String> ranked = rankedMirrors();
+        CompletableFuture<MirrorResponse<T>> winner = new CompletableFuture<>();
+        List<CompletableFuture<HttpResponse<T>>> inFlight = new ArrayList<>();
+        AtomicInteger remaining = new AtomicInteger(ranked.size());
+
+        for (int i = 0; i < ranked.size(); i++) {
+            String mirror = ranked.get(i);
+            String url = resolve(mirror, originalUrl);
+            long delay = hedgeDelayMs * i;
+
+            Runnable attempt = () -> {
+                if (winner.isDone()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                CompletableFuture<HttpResponse<T>> send;
+                try {
+                    send = httpClient.sendAsync(requestFactory.apply(url), bodyHandler);
+                } catch (Exception e) {
+                    send = CompletableFuture.failedFuture(e);
+                }
+                synchronized (inFlight) {
+                    if (winner.isDone()) {
+                        send.cancel(true);
+                    } else {
+                        inFlight.add(send);
+                    }
+                }
+                send.whenComplete((response, error) -> {
+                    if (error != null || !isSuccess(response.statusCode())) {
+                        // 胜出后被取消的请求不计入失败
+                        if (!winner.isDone()) {
+                            recordFailure(mirror);
+                            logger.debug("镜像请求失败: " + url + " (" +
+                                    (error != null ? error.getMessage() : "HTTP " + response.statusCode()) + ")");
+                        }
+                        closeQuietly(response);
+                        if (remaining.decrementAndGet() == 0) {
+                            winner.completeExceptionally(new IOException("所有镜像均请求失败: " + originalUrl));
+                        }
+                        return;
+                    }
+                    recordSuccess(mirror, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    if (!winner.complete(new MirrorResponse<>(mirror, url, response))) {
+                        closeQuietly(response);
+                    }
+                });
+            };
+
+            if (delay > 0) {
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor).execute(attempt);
+            } else {
+                attempt.run();
+            }
+        }
+
+        // 胜出后取消仍在进行的请求
+        winner.whenComplete((result, error) -> {
+            synchronized (inFlight) {
+                for (CompletableFuture<HttpResponse<T>> send : inFlight) {
+                    send.cancel(true);
+                }
+            }
+        });
+        return winner;
+    }
+
+    private boolean isSuccess(int statusCode) {
+        return statusCode == 200 || statusCode == 304;
+    }
+
+    private void closeQuietly(HttpResponse<?> response) {
+        if (response != null && response.body() instanceof Closeable) {
+            try {
+                ((Closeable) response.body()).close();
+            } catch (IOException ignored) {
+                // 忽略关闭失败
+            }
+        }
+    }
+
+    public static class MirrorResponse<T> {
+        private final String mirror;
+        private final String url;
+        private final HttpResponse<T> response;
+
+        private MirrorResponse(String mirror, String url, HttpResponse<T> response) {
+            this.mirror = mirror;
+            this.url = url;
+            this.response = response;
+        }
+
+        public String getMirror() {
+            return mirror;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public HttpResponse<T> getResponse() {
+            return response;
+        }
+    }
+
+    private static class MirrorStats {
+        // 尚未测量的镜像延迟视为0，保证每个镜像至少被尝试一次
+        private volatile double latencyMs = 0;
+        private volatile int consecutiveFailures = 0;
+        private volatile long lastFailureTime = 0;
+
+        private synchronized void recordSuccess(long sample) {
+            latencyMs = latencyMs == 0 ? sample : latencyMs * (1 - EWMA_WEIGHT) + sample * EWMA_WEIGHT;
+            consecutiveFailures = 0;
+        }
+
+        private synchronized void recordFailure() {
+            consecutiveFailures++;
+            lastFailureTime = System.currentTimeMillis();
+        }
+
+        private boolean isCoolingDown(long now) {
+            return consecutiveFailures > 0 && now - lastFailureTime < FAILURE_COOLDOWN_MS;
+        }
+    }
+}
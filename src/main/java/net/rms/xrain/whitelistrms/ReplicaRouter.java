@@ -0,0 +1,100 @@
+package net.rms.xrain.whitelistrms;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 只读查询在健康的从库之间轮询，从库不可用或复制延迟超过阈值时回退到主库
+public class ReplicaRouter {
+    private final Logger logger;
+    private final DataSource primary;
+    private final List<Replica> replicas;
+    private final int maxLagSeconds;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReplicaRouter(Logger logger, DataSource primary, List<HikariDataSource> replicaDataSources, int maxLagSeconds) {
+        this.logger = logger;
+        this.primary = primary;
+        this.replicas = replicaDataSources.stream().map(Replica::new).toList();
+        this.maxLagSeconds = maxLagSeconds;
+    }
+
+    public Connection getReadConnection() throws SQLException {
+        int size = replicas.size();
+        int start = Math.floorMod(next.getAndIncrement(), Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (!replica.healthy) {
+                continue;
+            }
+            try {
+                return replica.dataSource.getConnection();
+            } catch (SQLException e) {
+                replica.healthy = false;
+                logger.warn("Replica " + replica.dataSource.getPoolName() + " is unavailable, routing reads elsewhere: " + e.getMessage());
+            }
+        }
+        return primary.getConnection();
+    }
+
+    public void checkReplicationLag() {
+        for (Replica replica : replicas) {
+            boolean wasHealthy = replica.healthy;
+            replica.healthy = isWithinLag(replica);
+            if (wasHealthy != replica.healthy) {
+                logger.info("Replica " + replica.dataSource.getPoolName() + " is now " +
+                        (replica.healthy ? "in rotation" : "out of rotation"));
+            }
+        }
+    }
+
+    private boolean isWithinLag(Replica replica) {
+        try (Connection conn = replica.dataSource.getConnection()) {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SHOW SLAVE STATUS")) {
+                if (!rs.next()) {
+                    // 不是复制从库（例如集群节点），视为没有延迟
+                    return true;
+                }
+                long lag = rs.getLong("Seconds_Behind_Master");
+                if (rs.wasNull()) {
+                    // 复制线程已停止
+                    return false;
+                }
+                return lag <= maxLagSeconds;
+            } catch (SQLException e) {
+                if (!replica.lagCheckWarned) {
+                    replica.lagCheckWarned = true;
+                    logger.warn("Cannot check replication lag on " + replica.dataSource.getPoolName() +
+                            " (REPLICATION CLIENT privilege required), assuming it is up to date: " + e.getMessage());
+                }
+                return true;
+            }
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private static class Replica {
+        private final HikariDataSource dataSource;
+        private volatile boolean healthy = true;
+        private volatile boolean lagCheckWarned = false;
+
+        private Replica(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 同步分片上的白名单副本：把主库记录复制到用户名对应的分片，并删除分片上主库已不存在、
+// 或不再属于该分片的副本。主库始终保留全部记录，管理后台删除的玩家在下一次同步后在分片上也被删除。
+// 定时执行，增加或移除分片后也可以用 /whitelistrms rebalance 立即执行；中途失败可以重新执行
+public class ShardRebalancer {
+    private static final int CHUNK_SIZE = 500;
+
+    private final Logger logger;
+    private final ShardRouter router;
+    private final String whitelistTable;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public ShardRebalancer(Logger logger, ShardRouter router, String whitelistTable) {
+        this.logger = logger;
+        this.router = router;
+        this.whitelistTable = whitelistTable;
+    }
+
+    // 返回写入和删除的副本数，已有同步在进行时返回 -1
+    public int rebalance() throws SQLException {
+        if (!running.compareAndSet(false, true)) {
+            return -1;
+        }
+        try {
+            if (!router.isSharded()) {
+                return 0;
+            }
+            int copied = copyFromPrimary();
+            int removed = 0;
+            for (ShardRouter.Shard shard : router.getShards()) {
+                if (shard != router.getPrimary()) {
+                    removed += removeStaleCopies(shard);
+                }
+            }
+            if (copied > 0 || removed > 0) {
+                logger.info("Shard sync finished, copied " + copied + " row(s), removed " + removed + " stale row(s)");
+            }
+            return copied + removed;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // 按主键分页读取主库，每页按目标分片分组，只写入分片上缺失或UUID不同的记录
+    private int copyFromPrimary() throws SQLException {
+        int copied = 0;
+        long lastId = 0;
+        while (true) {
+            // 目标分片 -> 小写用户名 -> 主库记录（用户名、UUID）
+            Map<ShardRouter.Shard, Map<String, String[]>> byTarget = new LinkedHashMap<>();
+            int scanned = 0;
+            try (Connection conn = router.getPrimary().getMaintenanceConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT id, username, uuid FROM " + whitelistTable + " WHERE id > ? ORDER BY id LIMIT ?")) {
+                stmt.setLong(1, lastId);
+                stmt.setInt(2, CHUNK_SIZE);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    scanned++;
+                    lastId = rs.getLong("id");
+                    String username = rs.getString("username");
+                    ShardRouter.Shard target = router.shardFor(username);
+                    if (target != router.getPrimary()) {
+                        byTarget.computeIfAbsent(target, k -> new LinkedHashMap<>())
+                                .put(username.toLowerCase(Locale.ROOT), new String[]{username, rs.getString("uuid")});
+                    }
+                }
+            }
+
+            for (Map.Entry<ShardRouter.Shard, Map<String, String[]>> entry : byTarget.entrySet()) {
+                copied += copyChunk(entry.getKey(), entry.getValue());
+            }
+            if (scanned < CHUNK_SIZE) {
+                return copied;
+            }
+        }
+    }
+
+    private int copyChunk(ShardRouter.Shard target, Map<String, String[]> rows) throws SQLException {
+        try (Connection conn = target.getMaintenanceConnection()) {
+            Map<String, String> existing = selectByUsername(conn, rows.keySet());
+            List<String[]> changed = new ArrayList<>();
+            for (Map.Entry<String, String[]> row : rows.entrySet()) {
+                if (!existing.containsKey(row.getKey()) || !Objects.equals(existing.get(row.getKey()), row.getValue()[1])) {
+                    changed.add(row.getValue());
+                }
+            }
+            if (changed.isEmpty()) {
+                return 0;
+            }
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO " + whitelistTable + " (username, uuid) VALUES (?, ?) ON DUPLICATE KEY UPDATE uuid = VALUES(uuid)")) {
+                for (String[] row : changed) {
+                    stmt.setString(1, row[0]);
+                    stmt.setString(2, row[1]);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            return changed.size();
+        }
+    }
+
+    // 删除分片上不属于该分片，或主库中已不存在的副本（管理后台删除、玩家改名后的旧用户名）
+    private int removeStaleCopies(ShardRouter.Shard shard) throws SQLException {
+        int removed = 0;
+        long lastId = 0;
+        while (true) {
+            // 主键 -> 小写用户名
+            Map<Long, String> rows = new LinkedHashMap<>();
+            try (Connection conn = shard.getMaintenanceConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                     "SELECT id, username FROM " + whitelistTable + " WHERE id > ? ORDER BY id LIMIT ?")) {
+                stmt.setLong(1, lastId);
+                stmt.setInt(2, CHUNK_SIZE);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    lastId = rs.getLong("id");
+                    rows.put(lastId, rs.getString("username").toLowerCase(Locale.ROOT));
+                }
+            }
+
+            Set<String> candidates = new HashSet<>();
+            for (String username : rows.values()) {
+                if (router.shardFor(username) == shard) {
+                    candidates.add(username);
+                }
+            }
+            Set<String> onPrimary = Set.of();
+            if (!candidates.isEmpty()) {
+                try (Connection conn = router.getPrimary().getMaintenanceConnection()) {
+                    onPrimary = selectByUsername(conn, candidates).keySet();
+                }
+            }
+            List<Long> stale = new ArrayList<>();
+            for (Map.Entry<Long, String> row : rows.entrySet()) {
+                if (!onPrimary.contains(row.getValue())) {
+                    stale.add(row.getKey());
+                }
+            }
+
+            if (!stale.isEmpty()) {
+                try (Connection conn = shard.getMaintenanceConnection();
+                     PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + whitelistTable + " WHERE id IN (" +
+                             String.join(", ", Collections.nCopies(stale.size(), "?")) + ")")) {
+                    for (int i = 0; i < stale.size(); i++) {
+                        stmt.setLong(i + 1, stale.get(i));
+                    }
+                    removed += stmt.executeUpdate();
+                }
+            }
+            if (rows.size() < CHUNK_SIZE) {
+                return removed;
+            }
+        }
+    }
+
+    // 小写用户名 -> UUID，只包含存在的记录
+    private Map<String, String> selectByUsername(Connection conn, Set<String> usernames) throws SQLException {
+        List<String> keys = new ArrayList<>(usernames);
+        Map<String, String> found = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT username, uuid FROM " + whitelistTable +
+                " WHERE username IN (" + String.join(", ", Collections.nCopies(keys.size(), "?")) + ")")) {
+            for (int i = 0; i < keys.size(); i++) {
+                stmt.setString(i + 1, keys.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                found.put(rs.getString("username").toLowerCase(Locale.ROOT), rs.getString("uuid"));
+            }
+        }
+        return found;
+    }
+}
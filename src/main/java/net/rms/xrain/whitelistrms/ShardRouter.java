@@ -0,0 +1,115 @@
+package net.rms.xrain.whitelistrms;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+
+// 分片模式下主库保存全部白名单记录，是唯一的权威来源（管理后台只读写主库）；其他分片按用户名的稳定哈希
+// 保存主库记录的只读副本，登录时先查询副本，分担主库的读压力。副本由 ShardRebalancer 定时同步。
+// 使用最高随机权重（rendezvous）哈希：增加一个分片时只有约 1/n 的副本需要重新分布。
+// 未启用分片时只有主库一个分片
+public class ShardRouter {
+    private final List<Shard> shards;
+
+    public ShardRouter(List<Shard> shards) {
+        this.shards = List.copyOf(shards);
+    }
+
+    public Shard getPrimary() {
+        return shards.get(0);
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    public Shard shardFor(String username) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        String key = username.toLowerCase(Locale.ROOT);
+        Shard best = null;
+        long bestWeight = 0;
+        for (Shard shard : shards) {
+            long weight = weight(shard.name, key);
+            if (best == null || Long.compareUnsigned(weight, bestWeight) > 0) {
+                best = shard;
+                bestWeight = weight;
+            }
+        }
+        return best;
+    }
+
+    // FNV-1a 加 murmur3 的 fmix64，与JVM和启动顺序无关
+    private static long weight(String shardName, String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : (shardName + '\0' + key).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb3fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public void close() {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    public static class Shard {
+        private final String name;
+        private final HikariDataSource loginDataSource;
+        private final HikariDataSource maintenanceDataSource;
+        private volatile ReplicaRouter readRouter;
+
+        public Shard(String name, HikariDataSource loginDataSource, HikariDataSource maintenanceDataSource) {
+            this.name = name;
+            this.loginDataSource = loginDataSource;
+            this.maintenanceDataSource = maintenanceDataSource;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public HikariDataSource getLoginDataSource() {
+            return loginDataSource;
+        }
+
+        public HikariDataSource getMaintenanceDataSource() {
+            return maintenanceDataSource;
+        }
+
+        public void setReadRouter(ReplicaRouter readRouter) {
+            this.readRouter = readRouter;
+        }
+
+        // 读操作走从库（仅主库分片可配置从库），否则使用登录连接池
+        public Connection getReadConnection() throws SQLException {
+            ReplicaRouter router = readRouter;
+            return router != null ? router.getReadConnection() : loginDataSource.getConnection();
+        }
+
+        public Connection getMaintenanceConnection() throws SQLException {
+            return maintenanceDataSource.getConnection();
+        }
+
+        private void close() {
+            maintenanceDataSource.close();
+            loginDataSource.close();
+        }
+    }
+}
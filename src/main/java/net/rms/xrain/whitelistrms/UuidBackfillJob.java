@@ -0,0 +1,184 @@
+package net.rms.xrain.whitelistrms;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 为 uuid 为空的旧白名单记录补全UUID。按主键分页读取，批量查询Mojang接口，批量写回。
+// 使用维护连接池，不占用登录检查的连接
+public class UuidBackfillJob implements Runnable {
+    // Mojang批量接口每次最多查询10个玩家
+    private static final int LOOKUP_BATCH_SIZE = 10;
+    private static final String NOT_FOUND = "";
+
+    private final Logger logger;
+    private final DataSource dataSource;
+    private final HttpClient httpClient;
+    private final String whitelistTable;
+    private final String lookupUrl;
+    private final int chunkSize;
+    private final long chunkDelayMs;
+    // 用户名（小写） -> UUID，查不到的玩家记为 NOT_FOUND，避免每轮重复查询
+    private final Map<String, String> profileCache = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public UuidBackfillJob(Logger logger, DataSource dataSource, HttpClient httpClient, String whitelistTable,
+                           String lookupUrl, int chunkSize, long chunkDelayMs) {
+        this.logger = logger;
+        this.dataSource = dataSource;
+        this.httpClient = httpClient;
+        this.whitelistTable = whitelistTable;
+        this.lookupUrl = lookupUrl;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunkDelayMs = Math.max(0, chunkDelayMs);
+    }
+
+    @Override
+    public void run() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long lastId = 0;
+            int updated = 0;
+            while (true) {
+                Map<Long, String> chunk = readChunk(lastId);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                for (Long id : chunk.keySet()) {
+                    lastId = Math.max(lastId, id);
+                }
+
+                if (!resolveProfiles(chunk.values())) {
+                    // 被限流或接口不可用，下一轮再继续
+                    break;
+                }
+                updated += writeChunk(chunk);
+
+                if (chunk.size() < chunkSize) {
+                    break;
+                }
+                Thread.sleep(chunkDelayMs);
+            }
+            if (updated > 0) {
+                logger.info("UUID backfill filled in " + updated + " whitelist entries");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("UUID backfill failed", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private Map<Long, String> readChunk(long afterId) throws SQLException {
+        Map<Long, String> chunk = new LinkedHashMap<>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(
+                 "SELECT id, username FROM " + whitelistTable + " WHERE uuid IS NULL AND id > ? ORDER BY id LIMIT ?")) {
+            stmt.setLong(1, afterId);
+            stmt.setInt(2, chunkSize);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                chunk.put(rs.getLong("id"), rs.getString("username"));
+            }
+        }
+        return chunk;
+    }
+
+    private boolean resolveProfiles(Iterable<String> usernames) throws Exception {
+        List<String> pending = new ArrayList<>();
+        for (String username : usernames) {
+            if (!profileCache.containsKey(username.toLowerCase(Locale.ROOT))) {
+                pending.add(username);
+            }
+        }
+
+        for (int i = 0; i < pending.size(); i += LOOKUP_BATCH_SIZE) {
+            List<String> batch = pending.subList(i, Math.min(pending.size(), i + LOOKUP_BATCH_SIZE));
+            JsonArray body = new JsonArray();
+            batch.forEach(body::add);
+
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(lookupUrl))
+                    .timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                logger.warn("UUID backfill lookup failed with HTTP " + response.statusCode() + ", will retry later");
+                return false;
+            }
+
+            for (String username : batch) {
+                profileCache.put(username.toLowerCase(Locale.ROOT), NOT_FOUND);
+            }
+            for (JsonElement element : JsonParser.parseString(response.body()).getAsJsonArray()) {
+                JsonObject profile = element.getAsJsonObject();
+                profileCache.put(profile.get("name").getAsString().toLowerCase(Locale.ROOT),
+                        formatUuid(profile.get("id").getAsString()));
+            }
+        }
+        return true;
+    }
+
+    private int writeChunk(Map<Long, String> chunk) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE " + whitelistTable + " SET uuid = ? WHERE id = ? AND uuid IS NULL")) {
+                int batched = 0;
+                for (Map.Entry<Long, String> entry : chunk.entrySet()) {
+                    String uuid = profileCache.get(entry.getValue().toLowerCase(Locale.ROOT));
+                    if (uuid == null || NOT_FOUND.equals(uuid)) {
+                        continue;
+                    }
+                    stmt.setString(1, uuid);
+                    stmt.setLong(2, entry.getKey());
+                    stmt.addBatch();
+                    batched++;
+                }
+                if (batched > 0) {
+                    stmt.executeBatch();
+                }
+                conn.commit();
+                return batched;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    static String formatUuid(String uuid) {
+        return uuid.replaceFirst(
+            "(\\p{XDigit}{8})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{12})",
+            "$1-$2-$3-$4-$5"
+        );
+    }
+}
@@ -0,0 +1,104 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+public class WhitelistGroupIndex {
+    private final Logger logger;
+    // 后端服务器名（小写） -> 配置中的白名单分组名
+    private final Map<String, String> serverGroups;
+    // 只在刷新时整体替换，读取方无需加锁。分组名和服务器名一样不区分大小写，索引中统一为小写
+    private volatile Snapshot snapshot;
+
+    public WhitelistGroupIndex(Logger logger, Map<String, Object> servers) {
+        this.logger = logger;
+        this.serverGroups = new HashMap<>();
+        if (servers != null) {
+            for (Map.Entry<String, Object> entry : servers.entrySet()) {
+                if (entry.getValue() != null) {
+                    serverGroups.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue().toString());
+                }
+            }
+        }
+    }
+
+    public String getGroupForServer(String serverName) {
+        return serverGroups.get(serverName.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean hasMappedServers() {
+        return !serverGroups.isEmpty();
+    }
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    public boolean isMember(String group, String username, UUID uuid) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return false;
+        }
+        String key = group.toLowerCase(Locale.ROOT);
+        Set<String> names = current.usernames.get(key);
+        if (names != null && names.contains(username.toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        Set<String> uuids = current.uuids.get(key);
+        return uuids != null && uuid != null && uuids.contains(uuid.toString());
+    }
+
+    public void reload(Connection conn) throws SQLException {
+        Set<String> wantedGroups = new HashSet<>();
+        for (String group : serverGroups.values()) {
+            wantedGroups.add(group.toLowerCase(Locale.ROOT));
+        }
+        Map<String, Set<String>> usernames = new HashMap<>();
+        Map<String, Set<String>> uuids = new HashMap<>();
+        int members = 0;
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT group_name, username, uuid FROM whitelist_group")) {
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String group = rs.getString("group_name").toLowerCase(Locale.ROOT);
+                if (!wantedGroups.contains(group)) {
+                    continue;
+                }
+                usernames.computeIfAbsent(group, k -> new HashSet<>())
+                        .add(rs.getString("username").toLowerCase(Locale.ROOT));
+                String uuid = rs.getString("uuid");
+                if (uuid != null) {
+                    uuids.computeIfAbsent(group, k -> new HashSet<>()).add(uuid.toLowerCase(Locale.ROOT));
+                }
+                members++;
+            }
+        }
+
+        boolean firstLoad = snapshot == null;
+        snapshot = new Snapshot(usernames, uuids);
+        if (firstLoad) {
+            logger.info("Loaded " + members + " whitelist group members for " + wantedGroups.size() + " groups");
+        }
+    }
+
+    private static class Snapshot {
+        private final Map<String, Set<String>> usernames;
+        private final Map<String, Set<String>> uuids;
+
+        private Snapshot(Map<String, Set<String>> usernames, Map<String, Set<String>> uuids) {
+            this.usernames = Collections.unmodifiableMap(usernames);
+            this.uuids = Collections.unmodifiableMap(uuids);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+// 登录检查中的数据库读取：先按用户名、再按UUID查找白名单记录，不在白名单中时查询临时登录请求。
+// 登录路径上的语句都带有查询超时，数据库变慢时玩家不会无限等待。
+// 分片模式下先查询用户名所在分片上的副本，未找到时再查询主库：主库保存全部记录和临时登录请求，
+// 管理后台刚添加、尚未同步到分片的玩家也能登录。每次登录最多访问两个数据库，与分片数量无关
+public class WhitelistLookup {
+    private final Logger logger;
+    private final ShardRouter router;
+    private final String whitelistTable;
+    private final int queryTimeout;
+
+    public WhitelistLookup(Logger logger, ShardRouter router, String whitelistTable, int queryTimeout) {
+        this.logger = logger;
+        this.router = router;
+        this.whitelistTable = whitelistTable;
+        this.queryTimeout = queryTimeout;
+    }
+
+    public Result lookup(String username, UUID uuid, LoginTrace trace) throws SQLException {
+        ShardRouter.Shard primary = router.getPrimary();
+        ShardRouter.Shard home = router.shardFor(username);
+        Result result = new Result();
+
+        // 读操作走从库（未配置从库时使用主库），写操作前先归还连接；同一时间只持有一个数据库的连接
+        LoginTrace.Step step;
+        if (home != primary) {
+            step = trace.begin("acquire-read");
+            try (Connection conn = home.getReadConnection()) {
+                step.end("ok");
+                findEntry(conn, home, username, uuid, result, trace, "");
+            }
+            if (result.whitelisted) {
+                return result;
+            }
+        }
+
+        String stepSuffix = home != primary ? "-primary" : "";
+        step = trace.begin("acquire-read" + stepSuffix);
+        try (Connection conn = primary.getReadConnection()) {
+            step.end("ok");
+            findEntry(conn, primary, username, uuid, result, trace, stepSuffix);
+
+            // 检查是否已经有未处理的请求
+            if (!result.whitelisted) {
+                step = trace.begin("select-temporary");
+                try (PreparedStatement checkStmt = prepare(conn, "SELECT status FROM temporarylogin WHERE username = ?")) {
+                    checkStmt.setString(1, username);
+                    ResultSet checkRs = checkStmt.executeQuery();
+
+                    if (checkRs.next()) {
+                        result.temporaryStatus = checkRs.getString("status");
+                    }
+                }
+                step.end(result.temporaryStatus != null ? result.temporaryStatus : "none");
+            }
+        }
+        return result;
+    }
+
+    // 在一个数据库上先按用户名、再按UUID查找白名单记录
+    private void findEntry(Connection conn, ShardRouter.Shard shard, String username, UUID uuid, Result result,
+                           LoginTrace trace, String stepSuffix) throws SQLException {
+        String location = router.isSharded() ? " on shard " + shard.getName() : "";
+
+        // 首先尝试按用户名匹配
+        LoginTrace.Step step = trace.begin("select-username" + stepSuffix);
+        try (PreparedStatement stmt = prepare(conn, "SELECT uuid FROM " + whitelistTable + " WHERE username = ?")) {
+            stmt.setString(1, username);
+            ResultSet rs = stmt.executeQuery();
+
+            if (rs.next()) {
+                result.match(shard, null);
+                logger.info("Player " + username + " was granted access (username match" + location + ")");
+            }
+        }
+        step.end(result.whitelisted ? "hit" : "miss");
+
+        // 如果用户名匹配失败，尝试UUID匹配
+        if (!result.whitelisted && uuid != null) {
+            step = trace.begin("select-uuid" + stepSuffix);
+            String oldUsername = findUsernameByUuid(conn, uuid);
+            if (oldUsername != null) {
+                result.match(shard, oldUsername);
+                logger.info("Player " + username + " was granted access (UUID match" + location +
+                        ", old username: " + oldUsername + ")");
+            }
+            step.end(result.whitelisted ? "hit" : "miss");
+        }
+    }
+
+    private String findUsernameByUuid(Connection conn, UUID uuid) throws SQLException {
+        try (PreparedStatement stmt = prepare(conn, "SELECT username FROM " + whitelistTable + " WHERE uuid = ?")) {
+            stmt.setString(1, uuid.toString());
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getString("username") : null;
+        }
+    }
+
+    private PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        if (queryTimeout > 0) {
+            stmt.setQueryTimeout(queryTimeout);
+        }
+        return stmt;
+    }
+
+    public static class Result {
+        private boolean whitelisted;
+        private ShardRouter.Shard matchedShard;
+        private String oldUsername;
+        private String temporaryStatus;
+
+        private void match(ShardRouter.Shard matchedShard, String oldUsername) {
+            this.whitelisted = true;
+            this.matchedShard = matchedShard;
+            this.oldUsername = oldUsername;
+        }
+
+        public boolean isWhitelisted() {
+            return whitelisted;
+        }
+
+        // 找到记录的数据库：用户名所在分片上的副本或主库；未匹配时为 null
+        public ShardRouter.Shard getMatchedShard() {
+            return matchedShard;
+        }
+
+        // 按UUID匹配时记录中的旧用户名，按用户名匹配或未匹配时为 null
+        public String getOldUsername() {
+            return oldUsername;
+        }
+
+        public String getTemporaryStatus() {
+            return temporaryStatus;
+        }
+    }
+}
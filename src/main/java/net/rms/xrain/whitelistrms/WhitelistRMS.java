@@ -1,13 +1,17 @@
 package net.rms.xrain.whitelistrms;
 
 import com.google.inject.Inject;
+import com.velocitypowered.api.event.EventTask;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.LoginEvent;
+import com.velocitypowered.api.event.player.ServerPreConnectEvent;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
 import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
+import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import net.kyori.adventure.text.Component;
@@ -23,9 +27,14 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.time.Duration;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -38,11 +47,43 @@ import com.google.gson.JsonObject;
     authors = {"XRain666"}
 )
 public class WhitelistRMS {
+    private static final String PRIMARY_SHARD = "primary";
+
     private final ProxyServer server;
     private final Logger logger;
     private final Path dataDirectory;
-    private HikariDataSource dataSource;
+    private volatile HikariDataSource dataSource;
+    private volatile HikariDataSource maintenanceDataSource;
+    private volatile ReplicaRouter readRouter;
+    private int replicaMaxLag;
+    private int loginQueryTimeout;
+    private int replicaCheckInterval;
+    private String whitelistTable;
     private String notWhitelistedMessage;
+    private String notInGroupMessage;
+    private String startingUpMessage;
+    private String serverBusyMessage;
+    private AdmissionController admissionController;
+    private volatile WhitelistGroupIndex groupIndex;
+    private int groupRefreshInterval;
+    private boolean backfillEnabled;
+    private String backfillLookupUrl;
+    private int backfillInterval;
+    private int backfillChunkSize;
+    private int backfillChunkDelayMs;
+    private volatile StartupState startupState = StartupState.STARTING;
+    private final CompletableFuture<Void> startupFuture = new CompletableFuture<>();
+    private int loginWaitMs;
+    private long slowLoginThresholdMs;
+    private BlockingExecutor blockingExecutor;
+    private BlockingExecutor maintenanceExecutor;
+    private volatile ShardRouter shardRouter;
+    private volatile ShardRebalancer shardRebalancer;
+    private int shardSyncInterval;
+    private volatile WriteBehindQueue writeQueue;
+    private volatile LoginFlow loginFlow;
+    private int writeFlushIntervalMs;
+    private int writeMaxBatchSize;
     private HttpClient httpClient;
     private Gson gson;
     private AutoUpdater autoUpdater;
@@ -52,13 +93,15 @@ public class WhitelistRMS {
     private boolean notifyConsole;
     private boolean useMirror;
     private String customMirrorUrl;
+    private int backupRetention;
+    private List<String> updateMirrors;
+    private int hedgeDelayMs;
 
     @Inject
     public WhitelistRMS(ProxyServer server, Logger logger, @DataDirectory Path dataDirectory) {
         this.server = server;
         this.logger = logger;
         this.dataDirectory = dataDirectory;
-        this.httpClient = HttpClient.newHttpClient();
         this.gson = new Gson();
     }
 
@@ -99,10 +142,18 @@ public class WhitelistRMS {
             String database = (String) mysql.get("database");
             String username = (String) mysql.get("username");
             String password = (String) mysql.get("password");
+            whitelistTable = (String) mysql.getOrDefault("table", "whitelist");
+            if (whitelistTable == null || !whitelistTable.matches("[A-Za-z0-9_]+")) {
+                logger.warn("Invalid mysql.table '" + whitelistTable + "', falling back to 'whitelist'");
+                whitelistTable = "whitelist";
+            }
 
             // 获取消息配置
             Map<String, Object> messages = (Map<String, Object>) config.get("messages");
             notWhitelistedMessage = (String) messages.get("not-whitelisted");
+            notInGroupMessage = (String) messages.getOrDefault("not-in-group", "§c你没有进入该服务器的权限！");
+            startingUpMessage = (String) messages.getOrDefault("starting-up", "§e服务器正在启动中，请稍后再试！");
+            serverBusyMessage = (String) messages.getOrDefault("server-busy", "§e服务器繁忙，请稍后重试！");
 
             // 获取更新器配置
             Map<String, Object> updaterConfig = (Map<String, Object>) config.get("updater");
@@ -113,6 +164,9 @@ public class WhitelistRMS {
                 notifyConsole = (Boolean) updaterConfig.getOrDefault("notify-console", true);
                 useMirror = (Boolean) updaterConfig.getOrDefault("use-mirror", true);
                 customMirrorUrl = (String) updaterConfig.getOrDefault("custom-mirror-url", "");
+                backupRetention = (Integer) updaterConfig.getOrDefault("backup-retention", 3);
+                updateMirrors = (List<String>) updaterConfig.get("mirrors");
+                hedgeDelayMs = (Integer) updaterConfig.getOrDefault("hedge-delay-ms", 300);
             } else {
                 updaterEnabled = false;
                 checkInterval = 24;
@@ -120,110 +174,461 @@ public class WhitelistRMS {
                 notifyConsole = true;
                 useMirror = true;
                 customMirrorUrl = "";
+                backupRetention = 3;
+                hedgeDelayMs = 300;
+            }
+            if (updateMirrors == null || updateMirrors.isEmpty()) {
+                updateMirrors = MirrorSelector.defaultMirrors(useMirror, customMirrorUrl);
             }
 
-            // 配置数据库连接池
-            HikariConfig hikariConfig = new HikariConfig();
-            String jdbcUrl = String.format("jdbc:mariadb://%s:%d/%s", host, port, database);
-            logger.info("Connecting to database: " + jdbcUrl);
-            
-            hikariConfig.setDriverClassName("org.mariadb.jdbc.Driver");
-            hikariConfig.setJdbcUrl(jdbcUrl);
-            hikariConfig.setUsername(username);
-            hikariConfig.setPassword(password);
-            hikariConfig.setMaximumPoolSize(10);
-            hikariConfig.setMinimumIdle(1);
-            
-            // 添加连接测试配置
-            hikariConfig.setConnectionTestQuery("SELECT 1");
-            hikariConfig.setValidationTimeout(3000);
-            hikariConfig.setConnectionTimeout(5000);
-            hikariConfig.setAutoCommit(true);
-            hikariConfig.addDataSourceProperty("useSSL", "false");
-            hikariConfig.addDataSourceProperty("allowPublicKeyRetrieval", "true");
+            // 获取登录追踪配置
+            Map<String, Object> tracingConfig = (Map<String, Object>) config.get("tracing");
+            slowLoginThresholdMs = tracingConfig != null ? (Integer) tracingConfig.getOrDefault("slow-login-threshold-ms", 500) : 500;
+
+            // 获取启动配置
+            Map<String, Object> startupConfig = (Map<String, Object>) config.get("startup");
+            loginWaitMs = startupConfig != null ? (Integer) startupConfig.getOrDefault("login-wait-ms", 3000) : 3000;
+
+            // 配置数据库连接池：登录检查和后台维护任务使用各自的连接池，后台任务不会占用登录的连接
+            int socketTimeout = (Integer) mysql.getOrDefault("socket-timeout", 10000);
+            int leakDetectionThreshold = (Integer) mysql.getOrDefault("leak-detection-threshold", 0);
+            Map<String, Object> poolsConfig = (Map<String, Object>) config.get("pools");
+            HikariConfig hikariConfig = createHikariConfig("WhitelistRMS-login", host, port, database, username, password,
+                    socketTimeout, leakDetectionThreshold);
+            applyPoolSettings(hikariConfig, poolsConfig != null ? (Map<String, Object>) poolsConfig.get("login") : null, 10, 2, 5000);
+            HikariConfig maintenanceConfig = createHikariConfig("WhitelistRMS-maintenance", host, port, database, username, password,
+                    socketTimeout, leakDetectionThreshold);
+            applyPoolSettings(maintenanceConfig, poolsConfig != null ? (Map<String, Object>) poolsConfig.get("maintenance") : null, 2, 0, 30000);
+
+            // 从库配置，未填写的项沿用主库的配置
+            List<HikariConfig> replicaConfigs = new ArrayList<>();
+            List<Map<String, Object>> replicas = (List<Map<String, Object>>) mysql.get("replicas");
+            if (replicas != null) {
+                for (Map<String, Object> replica : replicas) {
+                    HikariConfig replicaConfig = createHikariConfig(
+                            "WhitelistRMS-replica-" + (replicaConfigs.size() + 1),
+                            (String) replica.get("host"),
+                            (Integer) replica.getOrDefault("port", port),
+                            (String) replica.getOrDefault("database", database),
+                            (String) replica.getOrDefault("username", username),
+                            (String) replica.getOrDefault("password", password),
+                            socketTimeout, leakDetectionThreshold);
+                    // 获取连接的超时较短，从库连接失败时尽快回退到主库
+                    applyPoolSettings(replicaConfig, poolsConfig != null ? (Map<String, Object>) poolsConfig.get("replica") : null, 10, 1, 1000);
+                    replicaConfig.setReadOnly(true);
+                    replicaConfigs.add(replicaConfig);
+                }
+            }
+            loginQueryTimeout = (Integer) mysql.getOrDefault("query-timeout", 3);
+            replicaMaxLag = (Integer) mysql.getOrDefault("replica-max-lag", 5);
+            replicaCheckInterval = (Integer) mysql.getOrDefault("replica-check-interval", 10);
+
+            // 分片配置：主库保存全部白名单记录，各个分片按用户名保存副本，每个分片有自己的登录/维护连接池，
+            // 未填写的连接项沿用主库的配置
+            Map<String, HikariConfig[]> shardConfigs = new LinkedHashMap<>();
+            Map<String, Object> shardingConfig = (Map<String, Object>) config.get("sharding");
+            if (shardingConfig != null && (Boolean) shardingConfig.getOrDefault("enabled", false)) {
+                shardSyncInterval = (Integer) shardingConfig.getOrDefault("sync-interval", 60);
+                List<Map<String, Object>> shards = (List<Map<String, Object>>) shardingConfig.get("shards");
+                if (shards != null) {
+                    for (Map<String, Object> shard : shards) {
+                        String name = String.valueOf(shard.get("name"));
+                        if (!name.matches("[A-Za-z0-9_-]+") || PRIMARY_SHARD.equals(name) || shardConfigs.containsKey(name)) {
+                            logger.warn("Invalid or duplicate shard name '" + name + "', skipping this shard");
+                            continue;
+                        }
+                        String shardHost = (String) shard.get("host");
+                        int shardPort = (Integer) shard.getOrDefault("port", port);
+                        String shardDatabase = (String) shard.getOrDefault("database", database);
+                        String shardUsername = (String) shard.getOrDefault("username", username);
+                        String shardPassword = (String) shard.getOrDefault("password", password);
+                        HikariConfig shardLoginConfig = createHikariConfig("WhitelistRMS-shard-" + name + "-login",
+                                shardHost, shardPort, shardDatabase, shardUsername, shardPassword, socketTimeout, leakDetectionThreshold);
+                        applyPoolSettings(shardLoginConfig, poolsConfig != null ? (Map<String, Object>) poolsConfig.get("login") : null, 10, 2, 5000);
+                        HikariConfig shardMaintenanceConfig = createHikariConfig("WhitelistRMS-shard-" + name + "-maintenance",
+                                shardHost, shardPort, shardDatabase, shardUsername, shardPassword, socketTimeout, leakDetectionThreshold);
+                        applyPoolSettings(shardMaintenanceConfig, poolsConfig != null ? (Map<String, Object>) poolsConfig.get("maintenance") : null, 2, 0, 30000);
+                        shardConfigs.put(name, new HikariConfig[]{shardLoginConfig, shardMaintenanceConfig});
+                    }
+                }
+            }
+
+            Map<String, Object> groupsConfig = (Map<String, Object>) config.get("groups");
+
+            Map<String, Object> writeBehind = (Map<String, Object>) config.get("write-behind");
+            writeFlushIntervalMs = writeBehind != null ? (Integer) writeBehind.getOrDefault("flush-interval-ms", 5) : 5;
+            writeMaxBatchSize = writeBehind != null ? (Integer) writeBehind.getOrDefault("max-batch-size", 500) : 500;
 
+            Map<String, Object> backfill = (Map<String, Object>) config.get("uuid-backfill");
+            backfillEnabled = backfill != null && (Boolean) backfill.getOrDefault("enabled", false);
+            if (backfillEnabled) {
+                backfillLookupUrl = (String) backfill.getOrDefault("lookup-url",
+                        "https://api.minecraftservices.com/minecraft/profile/lookup/bulk/byname");
+                backfillInterval = (Integer) backfill.getOrDefault("interval", 3600);
+                backfillChunkSize = (Integer) backfill.getOrDefault("chunk-size", 100);
+                backfillChunkDelayMs = (Integer) backfill.getOrDefault("chunk-delay-ms", 1000);
+            }
+
+            // 阻塞任务执行器，虚拟线程模式下并发上限与所有分片和从库的连接池大小之和一致
+            Map<String, Object> executionConfig = (Map<String, Object>) config.get("execution");
+            boolean useVirtualThreads = executionConfig != null && (Boolean) executionConfig.getOrDefault("virtual-threads", false);
+            int shardCount = 1 + shardConfigs.size();
+            int loginConcurrency = hikariConfig.getMaximumPoolSize() * shardCount;
+            for (HikariConfig replicaConfig : replicaConfigs) {
+                loginConcurrency += replicaConfig.getMaximumPoolSize();
+            }
+            blockingExecutor = BlockingExecutor.create(logger, useVirtualThreads, loginConcurrency, schedulerExecutor());
+            maintenanceExecutor = BlockingExecutor.create(logger, useVirtualThreads, maintenanceConfig.getMaximumPoolSize() * shardCount, schedulerExecutor());
+
+            // 登录准入控制，数据库处理不过来时让多余的登录排队或快速拒绝。
+            // 初始并发上限和最大值为0时按登录连接池大小之和（所有分片和从库）计算
+            Map<String, Object> admission = (Map<String, Object>) config.get("admission");
+            if (admission != null && (Boolean) admission.getOrDefault("enabled", true)) {
+                int initialLimit = (Integer) admission.getOrDefault("initial-limit", 0);
+                int maxLimit = (Integer) admission.getOrDefault("max-limit", 0);
+                admissionController = new AdmissionController(
+                        initialLimit > 0 ? initialLimit : loginConcurrency,
+                        (Integer) admission.getOrDefault("min-limit", 2),
+                        maxLimit > 0 ? maxLimit : loginConcurrency * 2,
+                        (Integer) admission.getOrDefault("max-queue", 100),
+                        (Integer) admission.getOrDefault("queue-timeout-ms", 2000),
+                        (Integer) admission.getOrDefault("latency-target-ms", 250));
+            }
+
+            // GitHub的发布文件下载地址会重定向到CDN
+            HttpClient.Builder httpClientBuilder = HttpClient.newBuilder()
+                    .followRedirects(HttpClient.Redirect.NORMAL);
+            if (blockingExecutor.isVirtual()) {
+                httpClientBuilder.executor(blockingExecutor.unlimited());
+            }
+            httpClient = httpClientBuilder.build();
+
+            // 数据库初始化和更新器初始化互不依赖，在后台并行执行，不阻塞代理启动
+            CompletableFuture<List<HikariDataSource>> replicasReady = CompletableFuture
+                    .supplyAsync(() -> createReplicaPools(replicaConfigs), blockingExecutor);
+            CompletableFuture<Void> databaseReady = CompletableFuture
+                    .runAsync(() -> initializeDatabase(hikariConfig, maintenanceConfig, shardConfigs), blockingExecutor)
+                    .thenCompose(v -> createTables())
+                    .thenCombine(replicasReady, (v, replicaPools) -> {
+                        initializeReplicaRouter(replicaPools);
+                        return (Void) null;
+                    })
+                    .thenRunAsync(() -> initializeGroupIndex(groupsConfig), blockingExecutor)
+                    .whenComplete((v, e) -> {
+                        if (e != null) {
+                            startupState = StartupState.FAILED;
+                            logger.error("Failed to initialize database, whitelist checks are unavailable", e);
+                            startupFuture.completeExceptionally(e);
+                            return;
+                        }
+                        startMaintenanceTasks();
+                        startupState = StartupState.READY;
+                        startupFuture.complete(null);
+                        logger.info("WhitelistRMS database is ready");
+                    });
+
+            // 分片副本同步命令
+            server.getCommandManager().register(
+                    server.getCommandManager().metaBuilder("whitelistrms").build(),
+                    new WhitelistRMSCommand(logger, () -> shardRebalancer, maintenanceExecutor.unlimited()));
+
+            // 更新器只访问网络和文件，不使用数据库连接，不占用阻塞任务的并发许可
+            CompletableFuture<Void> updaterReady = CompletableFuture
+                    .runAsync(this::initializeUpdater, blockingExecutor.unlimited())
+                    .exceptionally(e -> {
+                        logger.error("Failed to initialize auto updater", e);
+                        return null;
+                    });
+
+            CompletableFuture.allOf(databaseReady, updaterReady).whenComplete((v, e) -> {
+                if (startupState == StartupState.READY) {
+                    logger.info("WhitelistRMS plugin has been enabled!");
+                }
+            });
+        } catch (Exception e) {
+            startupState = StartupState.FAILED;
+            startupFuture.completeExceptionally(e);
+            logger.error("Failed to initialize plugin", e);
+        }
+    }
+
+    private Executor schedulerExecutor() {
+        return task -> server.getScheduler().buildTask(this, task).schedule();
+    }
+
+    private HikariConfig createHikariConfig(String poolName, String host, int port, String database, String username, String password,
+                                            int socketTimeout, int leakDetectionThreshold) {
+        HikariConfig hikariConfig = new HikariConfig();
+        String jdbcUrl = String.format("jdbc:mariadb://%s:%d/%s", host, port, database);
+        logger.info("Connecting to database: " + jdbcUrl);
+        
+        hikariConfig.setPoolName(poolName);
+        hikariConfig.setDriverClassName("org.mariadb.jdbc.Driver");
+        hikariConfig.setJdbcUrl(jdbcUrl);
+        hikariConfig.setUsername(username);
+        hikariConfig.setPassword(password);
+        
+        // 添加连接测试配置
+        hikariConfig.setConnectionTestQuery("SELECT 1");
+        hikariConfig.setValidationTimeout(3000);
+        hikariConfig.setAutoCommit(true);
+        hikariConfig.addDataSourceProperty("useSSL", "false");
+        hikariConfig.addDataSourceProperty("allowPublicKeyRetrieval", "true");
+        
+        // 连接被静默断开时，socketTimeout 保证读写不会永久阻塞
+        if (socketTimeout > 0) {
+            hikariConfig.addDataSourceProperty("socketTimeout", String.valueOf(socketTimeout));
+        }
+        // 连接借出超过该时间未归还时输出泄漏警告
+        if (leakDetectionThreshold > 0) {
+            hikariConfig.setLeakDetectionThreshold(leakDetectionThreshold);
+        }
+        return hikariConfig;
+    }
+
+    private void applyPoolSettings(HikariConfig hikariConfig, Map<String, Object> pool,
+                                   int defaultMaximumSize, int defaultMinimumIdle, int defaultConnectionTimeout) {
+        if (pool == null) {
+            pool = Map.of();
+        }
+        hikariConfig.setMaximumPoolSize((Integer) pool.getOrDefault("maximum-size", defaultMaximumSize));
+        hikariConfig.setMinimumIdle((Integer) pool.getOrDefault("minimum-idle", defaultMinimumIdle));
+        hikariConfig.setConnectionTimeout((Integer) pool.getOrDefault("connection-timeout", defaultConnectionTimeout));
+    }
+
+    private List<HikariDataSource> createReplicaPools(List<HikariConfig> replicaConfigs) {
+        List<HikariDataSource> pools = new ArrayList<>();
+        for (HikariConfig replicaConfig : replicaConfigs) {
             try {
-                Class.forName("org.mariadb.jdbc.Driver");
-                dataSource = new HikariDataSource(hikariConfig);
-                logger.info("Successfully connected to database!");
+                pools.add(new HikariDataSource(replicaConfig));
             } catch (Exception e) {
-                logger.error("Failed to create connection pool", e);
-                throw e;
+                // 从库不可用不影响启动，读请求会使用主库
+                logger.error("Failed to create replica connection pool " + replicaConfig.getPoolName(), e);
             }
-            
-            // 创建白名单表（如果不存在）
-            try (Connection conn = dataSource.getConnection()) {
-                conn.createStatement().execute(
-                    "CREATE TABLE IF NOT EXISTS whitelist (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY," +
-                    "username VARCHAR(36) NOT NULL UNIQUE," +
-                    "uuid VARCHAR(36) NULL" +
-                    ")"
-                );
-                
-                // 检查是否需要添加uuid列（向后兼容）
+        }
+        return pools;
+    }
+
+    private void initializeReplicaRouter(List<HikariDataSource> replicaPools) {
+        if (replicaPools.isEmpty()) {
+            return;
+        }
+        ReplicaRouter router = new ReplicaRouter(logger, dataSource, replicaPools, replicaMaxLag);
+        router.checkReplicationLag();
+        readRouter = router;
+        shardRouter.getPrimary().setReadRouter(router);
+        logger.info("Routing whitelist reads to " + replicaPools.size() + " replica(s)");
+    }
+
+    private void initializeDatabase(HikariConfig hikariConfig, HikariConfig maintenanceConfig, Map<String, HikariConfig[]> shardConfigs) {
+        List<ShardRouter.Shard> shards = new ArrayList<>();
+        try {
+            Class.forName("org.mariadb.jdbc.Driver");
+            dataSource = new HikariDataSource(hikariConfig);
+            maintenanceDataSource = new HikariDataSource(maintenanceConfig);
+            shards.add(new ShardRouter.Shard(PRIMARY_SHARD, dataSource, maintenanceDataSource));
+            // 任何一个分片不可用都会导致部分玩家的检查结果错误，因此分片连接失败时启动失败
+            for (Map.Entry<String, HikariConfig[]> shardConfig : shardConfigs.entrySet()) {
+                HikariDataSource shardLogin = new HikariDataSource(shardConfig.getValue()[0]);
                 try {
+                    shards.add(new ShardRouter.Shard(shardConfig.getKey(), shardLogin, new HikariDataSource(shardConfig.getValue()[1])));
+                } catch (Exception e) {
+                    shardLogin.close();
+                    throw e;
+                }
+            }
+            // 所有写操作都写入主库，分片上的副本由同步任务更新
+            writeQueue = new WriteBehindQueue(logger, maintenanceDataSource, maintenanceExecutor, whitelistTable, loginQueryTimeout,
+                    writeFlushIntervalMs, writeMaxBatchSize, dataDirectory.resolve("pending-writes.txt"));
+            shardRouter = new ShardRouter(shards);
+            shardRebalancer = new ShardRebalancer(logger, shardRouter, whitelistTable);
+            loginFlow = new LoginFlow(logger, admissionController,
+                    new WhitelistLookup(logger, shardRouter, whitelistTable, loginQueryTimeout), writeQueue,
+                    (task, delay) -> server.getScheduler().buildTask(this, task).delay(delay).schedule(),
+                    serverBusyMessage, slowLoginThresholdMs);
+            logger.info("Successfully connected to database!");
+            if (shardRouter.isSharded()) {
+                logger.info("Whitelist is sharded across " + shards.size() + " databases");
+            }
+        } catch (Exception e) {
+            logger.error("Failed to create connection pool", e);
+            // 主库连接池在关闭插件时释放，这里只释放已创建的分片连接池
+            for (int i = 1; i < shards.size(); i++) {
+                shards.get(i).getMaintenanceDataSource().close();
+                shards.get(i).getLoginDataSource().close();
+            }
+            throw new CompletionException(e);
+        }
+    }
+
+    private CompletableFuture<Void> createTables() {
+        // 各个表互不依赖，分别使用独立的连接并行创建；whitelist 在每个分片上都需要创建，其他分片上保存的是副本
+        List<CompletableFuture<Void>> tables = new ArrayList<>();
+        for (ShardRouter.Shard shard : shardRouter.getShards()) {
+            HikariDataSource shardDataSource = shard.getLoginDataSource();
+            tables.add(runStatements(shardDataSource,
+                "CREATE TABLE IF NOT EXISTS " + whitelistTable + " (" +
+                "id INT AUTO_INCREMENT PRIMARY KEY," +
+                "username VARCHAR(36) NOT NULL UNIQUE," +
+                "uuid VARCHAR(36) NULL" +
+                ")"
+            ).thenRunAsync(() -> {
+                // 检查是否需要添加uuid列（向后兼容）
+                try (Connection conn = shardDataSource.getConnection()) {
                     conn.createStatement().execute(
-                        "ALTER TABLE whitelist ADD COLUMN uuid VARCHAR(36) NULL"
+                        "ALTER TABLE " + whitelistTable + " ADD COLUMN uuid VARCHAR(36) NULL"
                     );
-                    logger.info("Added uuid column to whitelist table");
+                    logger.info("Added uuid column to " + whitelistTable + " table on shard " + shard.getName());
                 } catch (Exception e) {
                     // 列可能已经存在，忽略错误
                 }
-                conn.createStatement().execute(
-                    "CREATE TABLE IF NOT EXISTS temporarylogin (" +
-                    "id INT AUTO_INCREMENT PRIMARY KEY," +
-                    "username VARCHAR(36) NOT NULL UNIQUE," +
-                    "request_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
-                    "status VARCHAR(20) DEFAULT 'pending'," +  // 状态：pending（等待中）, approved（已批准）, rejected（已拒绝）, timeout（超时）
-                    "update_time TIMESTAMP NULL DEFAULT NULL ON UPDATE CURRENT_TIMESTAMP" +
-                    ")"
-                );
-                logger.info("Database tables checked/created successfully");
-            }
+            }, blockingExecutor));
+        }
+        // 临时登录请求和白名单分组只保存在主库，管理后台只连接主库
+        tables.add(runStatements(dataSource,
+            "CREATE TABLE IF NOT EXISTS temporarylogin (" +
+            "id INT AUTO_INCREMENT PRIMARY KEY," +
+            "username VARCHAR(36) NOT NULL UNIQUE," +
+            "request_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+            "status VARCHAR(20) DEFAULT 'pending'," +  // 状态：pending（等待中）, approved（已批准）, rejected（已拒绝）, timeout（超时）
+            "update_time TIMESTAMP NULL DEFAULT NULL ON UPDATE CURRENT_TIMESTAMP" +
+            ")"
+        ));
+        tables.add(runStatements(dataSource,
+            "CREATE TABLE IF NOT EXISTS whitelist_group (" +
+            "id INT AUTO_INCREMENT PRIMARY KEY," +
+            "group_name VARCHAR(64) NOT NULL," +
+            "username VARCHAR(36) NOT NULL," +
+            "uuid VARCHAR(36) NULL," +
+            "UNIQUE KEY uk_group_username (group_name, username)" +
+            ")"
+        ));
+        return CompletableFuture.allOf(tables.toArray(new CompletableFuture[0]))
+                .thenRun(() -> logger.info("Database tables checked/created successfully"));
+    }
 
-            // 启动定时清理任务
-            server.getScheduler().buildTask(this, () -> {
-                try (Connection conn = dataSource.getConnection();
-                     PreparedStatement stmt = conn.prepareStatement(
-                         "DELETE FROM temporarylogin WHERE " +
-                         "TIMESTAMPDIFF(SECOND, request_time, CURRENT_TIMESTAMP) > 90")) {
-                    int deleted = stmt.executeUpdate();
-                    if (deleted > 0) {
-                        logger.info("Cleaned up " + deleted + " old temporary login requests");
-                    }
-                } catch (Exception e) {
-                    logger.error("Failed to clean up old temporary login requests", e);
+    private CompletableFuture<Void> runStatements(HikariDataSource target, String... statements) {
+        return CompletableFuture.runAsync(() -> {
+            try (Connection conn = target.getConnection()) {
+                for (String statement : statements) {
+                    conn.createStatement().execute(statement);
                 }
-            }).repeat(Duration.ofSeconds(30)).schedule();
-
-            // 初始化自动更新器
-            if (updaterEnabled) {
-                Path pluginJar = getPluginJarPath();
-                if (pluginJar != null) {
-                    autoUpdater = new AutoUpdater(httpClient, logger, pluginJar, dataDirectory, useMirror, customMirrorUrl);
-                    
-                    // 检查是否有待应用的更新
-                    autoUpdater.checkAndApplyPendingUpdate();
-                    
-                    // 启动定时检查任务
-                    server.getScheduler().buildTask(this, this::checkForUpdates)
-                            .repeat(Duration.ofHours(checkInterval))
-                            .delay(Duration.ofMinutes(1)) // 启动后1分钟开始第一次检查
-                            .schedule();
-                    
-                    if (notifyConsole) {
-                        logger.info("自动更新器已启用，检查间隔: " + checkInterval + " 小时" + 
-                                   (useMirror ? " (使用国内镜像)" : " (使用GitHub官方源)"));
-                    }
-                } else {
-                    logger.warn("无法确定插件JAR路径，自动更新器已禁用");
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, blockingExecutor);
+    }
+
+    private void initializeGroupIndex(Map<String, Object> groupsConfig) {
+        if (groupsConfig == null || !(Boolean) groupsConfig.getOrDefault("enabled", false)) {
+            return;
+        }
+        WhitelistGroupIndex index = new WhitelistGroupIndex(logger, (Map<String, Object>) groupsConfig.get("servers"));
+        if (!index.hasMappedServers()) {
+            logger.warn("白名单分组已启用，但没有配置任何服务器映射");
+            return;
+        }
+        groupRefreshInterval = (Integer) groupsConfig.getOrDefault("refresh-interval", 60);
+        groupIndex = index;
+        refreshGroupIndex();
+        logger.info("白名单分组已启用，索引刷新间隔: " + groupRefreshInterval + " 秒");
+    }
+
+    private void startMaintenanceTasks() {
+        // 写入上次关闭时未能写入数据库的操作
+        writeQueue.replaySpilled();
+
+        // 启动定时清理任务，临时登录请求只保存在主库
+        server.getScheduler().buildTask(this, () -> maintenanceExecutor.execute(() -> {
+            try (Connection conn = shardRouter.getPrimary().getMaintenanceConnection();
+                 PreparedStatement stmt = conn.prepareStatement(
+                     "DELETE FROM temporarylogin WHERE " +
+                     "TIMESTAMPDIFF(SECOND, request_time, CURRENT_TIMESTAMP) > 90")) {
+                int deleted = stmt.executeUpdate();
+                if (deleted > 0) {
+                    logger.info("Cleaned up " + deleted + " old temporary login requests");
                 }
+            } catch (Exception e) {
+                logger.error("Failed to clean up old temporary login requests", e);
             }
+        })).repeat(Duration.ofSeconds(30)).schedule();
+
+        // 定时检查从库复制延迟
+        if (readRouter != null) {
+            server.getScheduler().buildTask(this, () -> maintenanceExecutor.execute(readRouter::checkReplicationLag))
+                    .repeat(Duration.ofSeconds(replicaCheckInterval))
+                    .delay(Duration.ofSeconds(replicaCheckInterval))
+                    .schedule();
+        }
+
+        // 定时把主库记录同步到各个分片，管理后台删除的玩家在同步后失去访问权限
+        if (shardRouter.isSharded() && shardSyncInterval > 0) {
+            server.getScheduler().buildTask(this, () -> maintenanceExecutor.unlimited().execute(this::syncShards))
+                    .repeat(Duration.ofSeconds(shardSyncInterval))
+                    .schedule();
+        }
+
+        // 定时刷新白名单分组索引
+        if (groupIndex != null) {
+            server.getScheduler().buildTask(this, () -> maintenanceExecutor.execute(this::refreshGroupIndex))
+                    .repeat(Duration.ofSeconds(groupRefreshInterval))
+                    .delay(Duration.ofSeconds(groupRefreshInterval))
+                    .schedule();
+        }
 
-            logger.info("WhitelistRMS plugin has been enabled!");
+        // 定时为缺少UUID的白名单记录补全UUID
+        if (backfillEnabled) {
+            startUuidBackfill();
+        }
+    }
+
+    private void syncShards() {
+        try {
+            shardRebalancer.rebalance();
         } catch (Exception e) {
-            logger.error("Failed to initialize plugin", e);
+            logger.error("Failed to sync whitelist copies to shards", e);
+        }
+    }
+
+    private void startUuidBackfill() {
+        // 补全任务耗时较长且大部分时间在等待，交给维护执行器的无限制执行器（虚拟线程模式下在虚拟线程上执行），不占用维护任务的许可，
+        // 数据库操作使用维护连接池。只补全主库，分片上的副本由同步任务更新
+        UuidBackfillJob job = new UuidBackfillJob(logger, maintenanceDataSource, httpClient, whitelistTable,
+                backfillLookupUrl, backfillChunkSize, backfillChunkDelayMs);
+        server.getScheduler().buildTask(this, () -> maintenanceExecutor.unlimited().execute(job))
+                .repeat(Duration.ofSeconds(backfillInterval))
+                .delay(Duration.ofMinutes(1))
+                .schedule();
+        logger.info("UUID补全任务已启用，执行间隔: " + backfillInterval + " 秒");
+    }
+
+    private void initializeUpdater() {
+        if (!updaterEnabled) {
+            return;
+        }
+        
+        Path pluginJar = getPluginJarPath();
+        if (pluginJar == null) {
+            logger.warn("无法确定插件JAR路径，自动更新器已禁用");
+            return;
+        }
+        
+        autoUpdater = new AutoUpdater(httpClient, logger, pluginJar, dataDirectory, updateMirrors, hedgeDelayMs,
+                blockingExecutor.unlimited());
+        autoUpdater.setBackupRetention(backupRetention);
+        
+        // 检查是否有待应用的更新
+        autoUpdater.checkAndApplyPendingUpdate();
+        
+        // 启动定时检查任务
+        server.getScheduler().buildTask(this, this::checkForUpdates)
+                .repeat(Duration.ofHours(checkInterval))
+                .delay(Duration.ofMinutes(1)) // 启动后1分钟开始第一次检查
+                .schedule();
+        
+        if (notifyConsole) {
+            logger.info("自动更新器已启用，检查间隔: " + checkInterval + " 小时" + 
+                       " (更新源: " + String.join(", ", updateMirrors) + ")");
         }
     }
 
@@ -261,11 +666,7 @@ public class WhitelistRMS {
             
             if (response.statusCode() == 200) {
                 JsonObject profile = gson.fromJson(response.body(), JsonObject.class);
-                String uuid = profile.get("id").getAsString();
-                return uuid.replaceFirst(
-                    "(\\p{XDigit}{8})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{4})(\\p{XDigit}{12})",
-                    "$1-$2-$3-$4-$5"
-                );
+                return UuidBackfillJob.formatUuid(profile.get("id").getAsString());
             }
         } catch (Exception e) {
             logger.warn("Failed to fetch UUID for player " + playerName + ": " + e.getMessage());
@@ -274,109 +675,85 @@ public class WhitelistRMS {
     }
 
     @Subscribe
-    public void onLogin(LoginEvent event) {
+    public EventTask onLogin(LoginEvent event) {
+        LoginTrace trace = new LoginTrace(event.getPlayer().getUsername());
+        // 数据库尚未就绪时在配置的时间内等待启动完成，等待期间不占用事件线程；超时或启动失败由 runLoginCheck 处理
+        CompletableFuture<Void> startupGate;
+        if (startupState == StartupState.READY) {
+            startupGate = CompletableFuture.completedFuture(null);
+        } else {
+            LoginTrace.Step step = trace.begin("startup-wait");
+            startupGate = startupFuture.handle((v, e) -> (Void) null)
+                    .completeOnTimeout(null, loginWaitMs, TimeUnit.MILLISECONDS)
+                    .whenComplete((v, e) -> step.end(startupState == StartupState.READY ? "ready" : "not-ready"));
+        }
+        // 等待启动和排队等待许可时都不占用线程，取得许可后才在阻塞任务执行器上检查。
+        // 启动未完成时检查会立即返回，不需要许可
+        return EventTask.resumeWhenComplete(startupGate
+                .thenCompose(v -> startupState == StartupState.READY
+                        ? loginFlow.acquirePermit(trace)
+                        : CompletableFuture.<AdmissionController.Permit>completedFuture(null))
+                .handleAsync((permit, e) -> {
+                    runLoginCheck(event, trace, permit, e);
+                    return (Void) null;
+                }, blockingExecutor != null ? blockingExecutor : schedulerExecutor()));
+    }
+
+    private void runLoginCheck(LoginEvent event, LoginTrace trace, AdmissionController.Permit permit, Throwable failure) {
         String username = event.getPlayer().getUsername();
-        UUID playerUuid = event.getPlayer().getUniqueId();
-        
-        try (Connection conn = dataSource.getConnection()) {
-            boolean isWhitelisted = false;
-            boolean needsUsernameUpdate = false;
-            
-            // 首先尝试按用户名匹配
-            try (PreparedStatement stmt = conn.prepareStatement("SELECT uuid FROM whitelist WHERE username = ?")) {
-                stmt.setString(1, username);
-                ResultSet rs = stmt.executeQuery();
-                
-                if (rs.next()) {
-                    isWhitelisted = true;
-                    logger.info("Player " + username + " was granted access (username match)");
-                }
-            }
-            
-            // 如果用户名匹配失败，尝试UUID匹配
-            if (!isWhitelisted && playerUuid != null) {
-                try (PreparedStatement stmt = conn.prepareStatement("SELECT username FROM whitelist WHERE uuid = ?")) {
-                    stmt.setString(1, playerUuid.toString());
-                    ResultSet rs = stmt.executeQuery();
-                    
-                    if (rs.next()) {
-                        isWhitelisted = true;
-                        needsUsernameUpdate = true;
-                        String oldUsername = rs.getString("username");
-                        logger.info("Player " + username + " was granted access (UUID match, old username: " + oldUsername + ")");
-                    }
-                }
-            }
-            
-            // 如果通过UUID匹配成功，更新用户名
-            if (isWhitelisted && needsUsernameUpdate) {
-                try (PreparedStatement updateStmt = conn.prepareStatement("UPDATE whitelist SET username = ? WHERE uuid = ?")) {
-                    updateStmt.setString(1, username);
-                    updateStmt.setString(2, playerUuid.toString());
-                    updateStmt.executeUpdate();
-                    logger.info("Updated username for UUID " + playerUuid + " from database to " + username);
-                } catch (Exception e) {
-                    logger.error("Failed to update username for UUID " + playerUuid, e);
-                }
+        if (startupState != StartupState.READY) {
+            if (startupState == StartupState.FAILED) {
+                event.setResult(LoginEvent.ComponentResult.denied(Component.text(LoginFlow.SERVER_ERROR_MESSAGE)));
+            } else {
+                event.setResult(LoginEvent.ComponentResult.denied(Component.text(startingUpMessage)));
+                logger.info("Player " + username + " was denied access (plugin still starting up)");
             }
-            
-            if (!isWhitelisted) {
-                // 检查是否已经有未处理的请求
-                try (PreparedStatement checkStmt = conn.prepareStatement("SELECT status FROM temporarylogin WHERE username = ?")) {
-                    checkStmt.setString(1, username);
-                    ResultSet checkRs = checkStmt.executeQuery();
-                    
-                    if (checkRs.next()) {
-                        String status = checkRs.getString("status");
-                        if ("pending".equals(status)) {
-                            event.setResult(LoginEvent.ComponentResult.denied(Component.text("§e您的临时登录请求正在等待管理员审核中，请稍后再试！")));
-                            return;
-                        } else if ("rejected".equals(status)) {
-                            event.setResult(LoginEvent.ComponentResult.denied(Component.text("§c您的临时登录请求已被管理员拒绝！")));
-                            return;
-                        } else if ("approved".equals(status)) {
-                            // 临时登录请求已通过，允许登录
-                            logger.info("Player " + username + " logged in with approved temporary access");
-                            return;
-                        } else if ("timeout".equals(status)) {
-                            // 删除超时的请求，允许重新申请
-                            try (PreparedStatement deleteStmt = conn.prepareStatement("DELETE FROM temporarylogin WHERE username = ?")) {
-                                deleteStmt.setString(1, username);
-                                deleteStmt.executeUpdate();
-                            }
-                        }
-                    }
-                }
-                
-                // 创建新的临时登录请求
-                try (PreparedStatement insertStmt = conn.prepareStatement("INSERT INTO temporarylogin (username, status) VALUES (?, 'pending')")) {
-                    insertStmt.setString(1, username);
-                    insertStmt.executeUpdate();
-                }
+            trace.finish("starting", logger, slowLoginThresholdMs);
+            return;
+        }
 
-                // 启动异步任务检查超时
-                server.getScheduler().buildTask(this, () -> {
-                    try (Connection timeoutConn = dataSource.getConnection();
-                         PreparedStatement updateStmt = timeoutConn.prepareStatement(
-                             "UPDATE temporarylogin SET status = 'timeout' WHERE username = ? AND status = 'pending'")) {
-                        updateStmt.setString(1, username);
-                        updateStmt.executeUpdate();
-                        logger.info("Player " + username + " temporary login request timed out");
-                    } catch (Exception e) {
-                        logger.error("Failed to update timeout status for player " + username, e);
-                    }
-                }).delay(Duration.ofSeconds(60)).schedule();
-
-                // 向玩家显示提示消息并拒绝连接
-                event.setResult(LoginEvent.ComponentResult.denied(Component.text(
-                    "§e您当前不在白名单中，但是您可以让管理员在白名单管理系统上允许您的临时登录请求！\n" +
-                    "§e系统将在60秒内等待管理员的审核，请稍后重新连接服务器查看结果。"
-                )));
-                logger.info("Player " + username + " requested temporary login");
-            }
+        LoginFlow.Decision decision = loginFlow.check(username, event.getPlayer().getUniqueId(), trace, permit, failure);
+        if (!decision.isAllowed()) {
+            event.setResult(LoginEvent.ComponentResult.denied(Component.text(decision.getDenyMessage())));
+        }
+    }
+
+    @Subscribe
+    public void onServerPreConnect(ServerPreConnectEvent event) {
+        if (groupIndex == null) {
+            return;
+        }
+        
+        RegisteredServer target = event.getResult().getServer().orElse(null);
+        if (target == null) {
+            return;
+        }
+        
+        String group = groupIndex.getGroupForServer(target.getServerInfo().getName());
+        if (group == null) {
+            return;
+        }
+        
+        // 只查内存索引，不访问数据库
+        Player player = event.getPlayer();
+        if (!groupIndex.isLoaded()) {
+            event.setResult(ServerPreConnectEvent.ServerResult.denied());
+            player.sendMessage(Component.text(startingUpMessage));
+            return;
+        }
+        if (!groupIndex.isMember(group, player.getUsername(), player.getUniqueId())) {
+            event.setResult(ServerPreConnectEvent.ServerResult.denied());
+            player.sendMessage(Component.text(notInGroupMessage));
+            logger.info("Player " + player.getUsername() + " was denied access to server " +
+                    target.getServerInfo().getName() + " (not in group " + group + ")");
+        }
+    }
+
+    private void refreshGroupIndex() {
+        try (Connection conn = maintenanceDataSource.getConnection()) {
+            groupIndex.reload(conn);
         } catch (Exception e) {
-            logger.error("Failed to check whitelist for player " + username, e);
-            event.setResult(LoginEvent.ComponentResult.denied(Component.text("§c服务器错误，请联系管理员")));
+            logger.error("Failed to refresh whitelist group index", e);
         }
     }
 
@@ -450,10 +827,36 @@ public class WhitelistRMS {
         return "1.1.1-SNAPSHOT"; // 后备版本
     }
 
+    public enum StartupState {
+        STARTING,
+        READY,
+        FAILED
+    }
+
     @Subscribe
     public void onProxyShutdown(ProxyShutdownEvent event) {
-        if (dataSource != null) {
-            dataSource.close();
+        // 先写入队列中剩余的操作，再关闭连接池
+        if (writeQueue != null) {
+            writeQueue.close();
+        }
+        if (readRouter != null) {
+            readRouter.close();
+        }
+        if (shardRouter != null) {
+            shardRouter.close();
+        } else {
+            if (maintenanceDataSource != null) {
+                maintenanceDataSource.close();
+            }
+            if (dataSource != null) {
+                dataSource.close();
+            }
+        }
+        if (blockingExecutor != null) {
+            blockingExecutor.shutdown();
+        }
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdown();
         }
     }
 }
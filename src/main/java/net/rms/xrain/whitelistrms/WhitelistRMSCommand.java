@@ -0,0 +1,65 @@
+package net.rms.xrain.whitelistrms;
+
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.command.SimpleCommand;
+import net.kyori.adventure.text.Component;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// /whitelistrms rebalance：立即把主库记录同步到各个分片，增加或移除分片后执行
+public class WhitelistRMSCommand implements SimpleCommand {
+    private static final String PERMISSION = "whitelistrms.admin";
+
+    private final Logger logger;
+    private final Supplier<ShardRebalancer> rebalancer;
+    private final Executor executor;
+
+    public WhitelistRMSCommand(Logger logger, Supplier<ShardRebalancer> rebalancer, Executor executor) {
+        this.logger = logger;
+        this.rebalancer = rebalancer;
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Invocation invocation) {
+        CommandSource source = invocation.source();
+        String[] args = invocation.arguments();
+        if (args.length != 1 || !"rebalance".equalsIgnoreCase(args[0])) {
+            source.sendMessage(Component.text("§e用法: /whitelistrms rebalance"));
+            return;
+        }
+
+        ShardRebalancer current = rebalancer.get();
+        if (current == null) {
+            source.sendMessage(Component.text("§c数据库尚未就绪，请稍后再试"));
+            return;
+        }
+        source.sendMessage(Component.text("§e开始同步分片数据..."));
+        executor.execute(() -> {
+            try {
+                int moved = current.rebalance();
+                if (moved < 0) {
+                    source.sendMessage(Component.text("§c已有同步任务正在进行"));
+                } else {
+                    source.sendMessage(Component.text("§a分片数据同步完成，共更新 " + moved + " 条记录"));
+                }
+            } catch (Exception e) {
+                logger.error("Shard rebalance failed", e);
+                source.sendMessage(Component.text("§c分片数据同步失败: " + e.getMessage() + "，可以重新执行"));
+            }
+        });
+    }
+
+    @Override
+    public boolean hasPermission(Invocation invocation) {
+        return invocation.source().hasPermission(PERMISSION);
+    }
+
+    @Override
+    public List<String> suggest(Invocation invocation) {
+        return invocation.arguments().length <= 1 ? List.of("rebalance") : List.of();
+    }
+}
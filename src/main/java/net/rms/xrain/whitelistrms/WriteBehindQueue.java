@@ -0,0 +1,369 @@
+package net.rms.xrain.whitelistrms;
+
+import org.slf4j.Logger;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+// 登录路径上的写操作（临时登录请求、超时标记、用户名更新）先进入队列，按用户名合并后
+// 每隔几毫秒用多行语句批量写入。关闭时写入剩余的操作，写入失败的操作保存到文件，下次启动时重放
+public class WriteBehindQueue {
+    // 写入失败后的重试间隔
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final Map<TemporaryLoginOp, String> SPILL_KEYWORDS = Map.of(
+            TemporaryLoginOp.REQUEST, "request",
+            TemporaryLoginOp.TIMEOUT, "timeout",
+            TemporaryLoginOp.REQUEST_TIMED_OUT, "expired");
+
+    private final Logger logger;
+    private final DataSource dataSource;
+    private final Executor executor;
+    private final String whitelistTable;
+    // 每条写语句的超时时间（秒），数据库挂起时写入失败并稍后重试，不会一直占用连接和写入锁
+    private final int queryTimeout;
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final Path spillFile;
+    // 用户名 -> 临时登录操作，同一用户名的操作按 TemporaryLoginOp.combine 合并
+    private final Map<String, TemporaryLoginOp> temporaryLoginOps = new ConcurrentHashMap<>();
+    // UUID -> 新用户名
+    private final Map<String, String> renames = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Object flushLock = new Object();
+    private volatile boolean closed = false;
+
+    public enum TemporaryLoginOp {
+        REQUEST,
+        TIMEOUT,
+        // 写入前请求已超时：先创建请求再标记为超时
+        REQUEST_TIMED_OUT;
+
+        // 合并同一用户名先后发生的两个操作。超时不能覆盖尚未写入的请求，否则请求会丢失
+        static TemporaryLoginOp combine(TemporaryLoginOp earlier, TemporaryLoginOp later) {
+            if (later == TIMEOUT && earlier != TIMEOUT) {
+                return REQUEST_TIMED_OUT;
+            }
+            return later;
+        }
+
+        private boolean createsRequest() {
+            return this != TIMEOUT;
+        }
+
+        private boolean marksTimeout() {
+            return this != REQUEST;
+        }
+    }
+
+    private interface BatchWriter<V> {
+        void write(Map<String, V> batch) throws SQLException;
+    }
+
+    public WriteBehindQueue(Logger logger, DataSource dataSource, Executor executor, String whitelistTable, int queryTimeout,
+                            long flushIntervalMs, int maxBatchSize, Path spillFile) {
+        this.logger = logger;
+        this.dataSource = dataSource;
+        this.executor = executor;
+        this.whitelistTable = whitelistTable;
+        this.queryTimeout = queryTimeout;
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.spillFile = spillFile;
+    }
+
+    // 创建待审核的临时登录请求；已超时的请求会重新变为待审核
+    public void requestTemporaryLogin(String username) {
+        temporaryLoginOps.merge(username, TemporaryLoginOp.REQUEST, TemporaryLoginOp::combine);
+        scheduleFlush();
+    }
+
+    public void markTimeout(String username) {
+        temporaryLoginOps.merge(username, TemporaryLoginOp.TIMEOUT, TemporaryLoginOp::combine);
+        scheduleFlush();
+    }
+
+    public void rename(String uuid, String username) {
+        renames.put(uuid, username);
+        scheduleFlush();
+    }
+
+    public int pendingCount() {
+        return temporaryLoginOps.size() + renames.size();
+    }
+
+    private void scheduleFlush() {
+        if (closed) {
+            // 关闭过程中收到的操作直接写入
+            flush();
+            return;
+        }
+        scheduleFlush(flushIntervalMs);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (flushScheduled.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(this::flushScheduled,
+                    CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS, executor));
+        }
+    }
+
+    private void flushScheduled() {
+        flushScheduled.set(false);
+        boolean success = flush();
+        if (!closed && pendingCount() > 0) {
+            // 写入失败的操作已放回队列，稍后重试
+            scheduleFlush(success ? flushIntervalMs : RETRY_DELAY_MS);
+        }
+    }
+
+    // 写入队列中的一批操作，返回是否没有需要重试的操作
+    public boolean flush() {
+        synchronized (flushLock) {
+            Map<String, TemporaryLoginOp> temporaryBatch = drain(temporaryLoginOps);
+            Map<String, String> renameBatch = drain(renames);
+            // 临时登录请求和用户名更新互不相关，各自在独立的事务中写入，一组失败不影响另一组
+            boolean success = write("temporary login update", temporaryBatch, this::writeTemporaryLogins,
+                    // 放回队列：失败的操作比期间产生的操作更早
+                    (username, op) -> temporaryLoginOps.merge(username, op, (current, failed) -> TemporaryLoginOp.combine(failed, current)));
+            // 期间产生的更新的用户名优先
+            success &= write("username update", renameBatch, this::writeRenames, renames::putIfAbsent);
+            return success;
+        }
+    }
+
+    // 违反唯一约束、数据过长等由数据本身导致的错误重试也不会成功：逐条重新写入找出有问题的操作并丢弃，
+    // 其余操作照常写入。连接失败等其他错误把操作放回队列稍后重试
+    private <V> boolean write(String kind, Map<String, V> batch, BatchWriter<V> writer, BiConsumer<String, V> requeue) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        try {
+            writer.write(batch);
+            return true;
+        } catch (Exception e) {
+            if (!isDataError(e)) {
+                logger.error("Failed to write " + batch.size() + " queued " + kind + "(s), will retry", e);
+                batch.forEach(requeue);
+                return false;
+            }
+            if (batch.size() == 1) {
+                Map.Entry<String, V> entry = batch.entrySet().iterator().next();
+                logger.warn("Dropping queued " + kind + " for " + entry.getKey() + " (" + entry.getValue() + "): " + e.getMessage());
+                return true;
+            }
+        }
+
+        List<Map.Entry<String, V>> entries = new ArrayList<>(batch.entrySet());
+        for (int i = 0; i < entries.size(); i++) {
+            Map.Entry<String, V> entry = entries.get(i);
+            if (!write(kind, Map.of(entry.getKey(), entry.getValue()), writer, requeue)) {
+                // 数据库不可用时剩余的操作不再逐条尝试
+                for (Map.Entry<String, V> remaining : entries.subList(i + 1, entries.size())) {
+                    requeue.accept(remaining.getKey(), remaining.getValue());
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDataError(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLIntegrityConstraintViolationException || cause instanceof SQLDataException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && (state.startsWith("22") || state.startsWith("23"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void writeTemporaryLogins(Map<String, TemporaryLoginOp> batch) throws SQLException {
+        List<String> requests = new ArrayList<>();
+        List<String> timeouts = new ArrayList<>();
+        batch.forEach((username, op) -> {
+            if (op.createsRequest()) {
+                requests.add(username);
+            }
+            if (op.marksTimeout()) {
+                timeouts.add(username);
+            }
+        });
+
+        inTransaction(conn -> {
+            if (!requests.isEmpty()) {
+                // 新请求直接插入；已超时的请求重置为待审核；待审核/已处理的请求保持不变
+                executeMultiRow(conn, requests,
+                        "INSERT INTO temporarylogin (username, status) VALUES ",
+                        "(?, 'pending')", ", ",
+                        " ON DUPLICATE KEY UPDATE" +
+                        " request_time = IF(status = 'timeout', CURRENT_TIMESTAMP, request_time)," +
+                        " status = IF(status = 'timeout', 'pending', status)");
+            }
+            if (!timeouts.isEmpty()) {
+                executeMultiRow(conn, timeouts,
+                        "UPDATE temporarylogin SET status = 'timeout' WHERE status = 'pending' AND username IN (",
+                        "?", ", ", ")");
+            }
+        });
+        if (!timeouts.isEmpty()) {
+            logger.info(timeouts.size() + " temporary login request(s) timed out");
+        }
+    }
+
+    private void writeRenames(Map<String, String> batch) throws SQLException {
+        inTransaction(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "UPDATE " + whitelistTable + " SET username = ? WHERE uuid = ?")) {
+                applyQueryTimeout(stmt);
+                for (Map.Entry<String, String> rename : batch.entrySet()) {
+                    stmt.setString(1, rename.getValue());
+                    stmt.setString(2, rename.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        });
+        for (Map.Entry<String, String> rename : batch.entrySet()) {
+            logger.info("Updated username for UUID " + rename.getKey() + " from database to " + rename.getValue());
+        }
+    }
+
+    private interface TransactionBody {
+        void run(Connection conn) throws SQLException;
+    }
+
+    private void inTransaction(TransactionBody body) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                body.run(conn);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private <V> Map<String, V> drain(Map<String, V> queue) {
+        Map<String, V> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, V> entry : queue.entrySet()) {
+            if (batch.size() >= maxBatchSize) {
+                break;
+            }
+            if (queue.remove(entry.getKey(), entry.getValue())) {
+                batch.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return batch;
+    }
+
+    private void executeMultiRow(Connection conn, List<String> usernames, String prefix, String row,
+                                 String separator, String suffix) throws SQLException {
+        StringBuilder sql = new StringBuilder(prefix);
+        sql.append(String.join(separator, Collections.nCopies(usernames.size(), row)));
+        sql.append(suffix);
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            applyQueryTimeout(stmt);
+            for (int i = 0; i < usernames.size(); i++) {
+                stmt.setString(i + 1, usernames.get(i));
+            }
+            stmt.executeUpdate();
+        }
+    }
+
+    private void applyQueryTimeout(PreparedStatement stmt) throws SQLException {
+        if (queryTimeout > 0) {
+            stmt.setQueryTimeout(queryTimeout);
+        }
+    }
+
+    // 读取上次关闭时未能写入的操作
+    public void replaySpilled() {
+        if (!Files.exists(spillFile)) {
+            return;
+        }
+        try {
+            int count = 0;
+            for (String line : Files.readAllLines(spillFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && "request".equals(parts[0])) {
+                    temporaryLoginOps.putIfAbsent(parts[1], TemporaryLoginOp.REQUEST);
+                } else if (parts.length == 2 && "timeout".equals(parts[0])) {
+                    temporaryLoginOps.putIfAbsent(parts[1], TemporaryLoginOp.TIMEOUT);
+                } else if (parts.length == 2 && "expired".equals(parts[0])) {
+                    temporaryLoginOps.putIfAbsent(parts[1], TemporaryLoginOp.REQUEST_TIMED_OUT);
+                } else if (parts.length == 3 && "rename".equals(parts[0])) {
+                    renames.putIfAbsent(parts[1], parts[2]);
+                } else {
+                    continue;
+                }
+                count++;
+            }
+            Files.delete(spillFile);
+            if (count > 0) {
+                logger.info("Replaying " + count + " queued whitelist update(s) from the last shutdown");
+                scheduleFlush();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to read queued whitelist updates from " + spillFile, e);
+        }
+    }
+
+    // 关闭前写入所有剩余操作，数据库不可用时保存到文件
+    public void close() {
+        closed = true;
+        // 至少调用一次 flush：定时写入取走一批操作后计数已为0，但写入还没完成，
+        // flush 会等它完成，失败时放回队列的操作也在这里重新写入或保存
+        do {
+            if (!flush()) {
+                break;
+            }
+        } while (pendingCount() > 0);
+        if (pendingCount() == 0) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        temporaryLoginOps.forEach((username, op) -> lines.add(SPILL_KEYWORDS.get(op) + " " + username));
+        renames.forEach((uuid, username) -> lines.add("rename " + uuid + " " + username));
+        try {
+            Path tempFile = spillFile.resolveSibling(spillFile.getFileName() + ".tmp");
+            if (Files.exists(spillFile)) {
+                lines.addAll(0, Files.readAllLines(spillFile, StandardCharsets.UTF_8));
+            }
+            Files.write(tempFile, lines, StandardCharsets.UTF_8);
+            Files.move(tempFile, spillFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.warn("Saved " + (temporaryLoginOps.size() + renames.size()) + " unwritten whitelist update(s) to " + spillFile);
+        } catch (IOException e) {
+            logger.error("Failed to save " + lines.size() + " unwritten whitelist update(s)", e);
+        }
+    }
+}
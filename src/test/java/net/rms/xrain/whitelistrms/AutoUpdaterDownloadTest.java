@@ -0,0 +1,224 @@
+package net.rms.xrain.whitelistrms;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 用本地 HTTP 服务模拟镜像，检查断点续传、服务器忽略 Range、416、大小不符和摘要不符时的处理
+class AutoUpdaterDownloadTest {
+    private static final String ASSET_URL = "https://github.com/RMS-Server/whitelistRMS/releases/download/v2.0.0/whitelistRMS-2.0.0.jar";
+    private static final Duration DEADLINE = Duration.ofSeconds(30);
+    private static final byte[] JAR = new byte[200_000];
+
+    static {
+        for (int i = 0; i < JAR.length; i++) {
+            JAR[i] = (byte) (i * 31);
+        }
+    }
+
+    @TempDir
+    Path dataDirectory;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private ExecutorService executor;
+    private String mirror;
+    private Path tempFile;
+    // 依次处理每个下载请求，处理完的请求记录下 Range 请求头（没有时为空字符串）
+    private final Deque<Handler> downloads = new ArrayDeque<>();
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/mirror", exchange -> {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/releases/latest")) {
+                    respond(exchange, 200, releaseJson().getBytes(StandardCharsets.UTF_8));
+                } else if (path.endsWith(".jar")) {
+                    ranges.add(exchange.getRequestHeaders().getFirst("Range") != null
+                            ? exchange.getRequestHeaders().getFirst("Range") : "");
+                    Handler handler;
+                    synchronized (downloads) {
+                        handler = downloads.poll();
+                    }
+                    if (handler == null) {
+                        respond(exchange, 500, new byte[0]);
+                    } else {
+                        handler.handle(exchange);
+                    }
+                } else {
+                    respond(exchange, 404, new byte[0]);
+                }
+            } catch (IOException e) {
+                // 客户端已断开
+            }
+            // 处理器抛出运行时异常时不会执行到这里，HttpServer 直接关闭连接
+            exchange.close();
+        });
+        server.start();
+        executor = Executors.newCachedThreadPool();
+        mirror = "http://127.0.0.1:" + server.getAddress().getPort() + "/mirror";
+        tempFile = dataDirectory.resolve("whitelistRMS-2.0.0.jar.tmp");
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void interruptedStreamResumesWith206() throws Exception {
+        // 第一次只发送一半就断开连接
+        downloads.add(exchange -> {
+            exchange.sendResponseHeaders(200, JAR.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(JAR, 0, JAR.length / 2);
+            out.flush();
+            throw new IllegalStateException("connection dropped");
+        });
+        downloads.add(exchange -> {
+            long from = Long.parseLong(exchange.getRequestHeaders().getFirst("Range").replaceAll("\\D+(\\d+)-", "$1"));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (JAR.length - 1) + "/" + JAR.length);
+            respond(exchange, 206, Arrays.copyOfRange(JAR, (int) from, JAR.length));
+        });
+
+        assertTrue(download());
+
+        assertEquals(2, ranges.size());
+        assertEquals("", ranges.get(0));
+        assertTrue(ranges.get(1).startsWith("bytes="), ranges.get(1));
+        assertArrayEquals(JAR, Files.readAllBytes(tempFile));
+    }
+
+    @Test
+    void serverIgnoringRangeRestartsFromTheBeginning() throws Exception {
+        // 上次下载留下的部分内容与服务器当前的文件不同
+        Files.write(tempFile, new byte[1000]);
+        downloads.add(exchange -> respond(exchange, 200, JAR));
+
+        assertTrue(download());
+
+        assertEquals(List.of("bytes=1000-"), ranges);
+        assertArrayEquals(JAR, Files.readAllBytes(tempFile));
+    }
+
+    @Test
+    void unsatisfiableRangeDeletesThePartialFile() throws Exception {
+        Files.write(tempFile, Arrays.copyOf(JAR, 1000));
+        downloads.add(exchange -> respond(exchange, 416, new byte[0]));
+        downloads.add(exchange -> respond(exchange, 200, JAR));
+
+        assertTrue(download());
+
+        // 删除部分文件后重新请求完整文件
+        assertEquals(List.of("bytes=1000-", ""), ranges);
+        assertArrayEquals(JAR, Files.readAllBytes(tempFile));
+    }
+
+    @Test
+    void shortDownloadIsResumedFromWhereItStopped() throws Exception {
+        // 服务器返回的内容比发布信息中的大小少
+        downloads.add(exchange -> respond(exchange, 200, Arrays.copyOf(JAR, 5000)));
+        downloads.add(exchange -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes 5000-" + (JAR.length - 1) + "/" + JAR.length);
+            respond(exchange, 206, Arrays.copyOfRange(JAR, 5000, JAR.length));
+        });
+
+        assertTrue(download());
+
+        assertEquals(List.of("", "bytes=5000-"), ranges);
+        assertArrayEquals(JAR, Files.readAllBytes(tempFile));
+    }
+
+    @Test
+    void digestMismatchDeletesTheFileAndDownloadsAgain() throws Exception {
+        byte[] corrupted = JAR.clone();
+        corrupted[100] ^= 1;
+        downloads.add(exchange -> respond(exchange, 200, corrupted));
+        downloads.add(exchange -> respond(exchange, 200, JAR));
+
+        assertTrue(download());
+
+        // 第二次请求不带 Range，损坏的内容不会被续传
+        assertEquals(List.of("", ""), ranges);
+        assertArrayEquals(JAR, Files.readAllBytes(tempFile));
+    }
+
+    @Test
+    void persistentDigestMismatchGivesUpWithoutKeepingTheFile() throws Exception {
+        byte[] corrupted = JAR.clone();
+        corrupted[100] ^= 1;
+        for (int i = 0; i < 5; i++) {
+            downloads.add(exchange -> respond(exchange, 200, corrupted));
+        }
+
+        assertFalse(download());
+
+        assertEquals(5, ranges.size());
+        assertFalse(Files.exists(tempFile));
+        assertFalse(Files.exists(dataDirectory.resolve("update.txt")));
+    }
+
+    private boolean download() {
+        AutoUpdater updater = new AutoUpdater(HttpClient.newHttpClient(), NOPLogger.NOP_LOGGER,
+                dataDirectory.resolve("whitelistRMS.jar"), dataDirectory, List.of(mirror), 0, executor);
+        return assertTimeoutPreemptively(DEADLINE, () -> updater.downloadAndUpdate("2.0.0").get());
+    }
+
+    private static String releaseJson() {
+        try {
+            String sha256 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(JAR));
+            return "{\"tag_name\":\"v2.0.0\",\"assets\":[{\"name\":\"whitelistRMS-2.0.0.jar\"," +
+                    "\"browser_download_url\":\"" + ASSET_URL + "\",\"size\":" + JAR.length + "," +
+                    "\"digest\":\"sha256:" + sha256 + "\"}]}";
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
@@ -0,0 +1,94 @@
+package net.rms.xrain.whitelistrms;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 启动时应用已下载的更新：替换失败时新版本放回 update.txt 记录的位置，下次启动时重试
+class AutoUpdaterTest {
+    @TempDir
+    Path root;
+
+    private Path pluginsDir;
+    private Path dataDirectory;
+    private Path currentJar;
+    private Path newJar;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        pluginsDir = Files.createDirectories(root.resolve("plugins"));
+        dataDirectory = Files.createDirectories(pluginsDir.resolve("whitelistrms"));
+        currentJar = pluginsDir.resolve("whitelistRMS.jar");
+        newJar = dataDirectory.resolve("whitelistRMS-2.0.0.jar");
+        Files.writeString(pluginsDir.resolve("plugin.version"), "V 1.0.0");
+        Files.writeString(newJar, "new");
+        Files.writeString(dataDirectory.resolve("update.txt"),
+                "NEW_VERSION=2.0.0\n" +
+                "NEW_JAR_PATH=" + newJar + "\n" +
+                "CURRENT_JAR_PATH=" + currentJar + "\n" +
+                "UPDATE_TIME=0");
+    }
+
+    @Test
+    void appliesPendingUpdate() throws IOException {
+        Files.writeString(currentJar, "old");
+
+        updater().checkAndApplyPendingUpdate();
+
+        assertEquals("new", Files.readString(currentJar));
+        assertFalse(Files.exists(newJar));
+        assertFalse(Files.exists(dataDirectory.resolve("update.txt")));
+        assertEquals("V 2.0.0", Files.readString(pluginsDir.resolve("plugin.version")));
+    }
+
+    @Test
+    void failedReplaceKeepsTheUpdateForTheNextStart() throws IOException {
+        // 当前JAR的位置是非空目录，最后一步重命名失败
+        Files.createDirectories(currentJar);
+        Files.writeString(currentJar.resolve("locked"), "");
+
+        updater().checkAndApplyPendingUpdate();
+
+        assertEquals("new", Files.readString(newJar));
+        assertFalse(Files.exists(currentJar.resolveSibling(currentJar.getFileName() + ".new")));
+        assertTrue(Files.exists(dataDirectory.resolve("update.txt")));
+        assertEquals("V 1.0.0", Files.readString(pluginsDir.resolve("plugin.version")));
+
+        Files.delete(currentJar.resolve("locked"));
+        Files.delete(currentJar);
+        Files.writeString(currentJar, "old");
+        updater().checkAndApplyPendingUpdate();
+
+        assertEquals("new", Files.readString(currentJar));
+        assertFalse(Files.exists(dataDirectory.resolve("update.txt")));
+    }
+
+    @Test
+    void resumesUpdateInterruptedAfterStaging() throws IOException {
+        // 上次启动在移动到暂存位置后中断
+        Files.writeString(currentJar, "old");
+        Files.move(newJar, currentJar.resolveSibling(currentJar.getFileName() + ".new"));
+
+        updater().checkAndApplyPendingUpdate();
+
+        assertEquals("new", Files.readString(currentJar));
+        assertFalse(Files.exists(currentJar.resolveSibling(currentJar.getFileName() + ".new")));
+        assertFalse(Files.exists(dataDirectory.resolve("update.txt")));
+    }
+
+    private AutoUpdater updater() {
+        return new AutoUpdater(HttpClient.newHttpClient(), NOPLogger.NOP_LOGGER, currentJar, dataDirectory,
+                List.of(), 0, Runnable::run);
+    }
+}
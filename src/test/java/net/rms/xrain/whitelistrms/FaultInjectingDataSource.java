@@ -0,0 +1,665 @@
+package net.rms.xrain.whitelistrms;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// 测试用的数据源：用内存表执行登录检查的查询、写入队列、分片同步、UUID补全和分组索引的语句，并按配置注入延迟、断连和挂起。
+// 挂起的查询和真实驱动一样，只有语句的查询超时或连接的 socketTimeout 能让它返回
+class FaultInjectingDataSource implements DataSource {
+    // 小写用户名 -> 白名单记录，和 MariaDB 默认排序规则一样用户名不区分大小写
+    private final Map<String, WhitelistRow> whitelist = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, String> temporaryLogins = new ConcurrentHashMap<>();
+    // 分组成员按管理后台写入时的原样保存，分组名的大小写可能和配置不同
+    private final List<GroupMember> groupMembers = new CopyOnWriteArrayList<>();
+    private final Set<PhysicalConnection> openConnections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openStatements = new AtomicInteger();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger injectedHangs = new AtomicInteger();
+    private final AtomicInteger injectedDrops = new AtomicInteger();
+    private final AtomicInteger failingWrites = new AtomicInteger();
+
+    private volatile long latencyMs;
+    private volatile double slowRate;
+    private volatile long slowMs;
+    private volatile double hangRate;
+    private volatile double dropRate;
+    // 模拟驱动的 socketTimeout，0 表示读操作永远等待
+    private volatile long socketTimeoutMs;
+
+    void addWhitelisted(String username, String uuid) {
+        whitelist.put(username.toLowerCase(Locale.ROOT), new WhitelistRow(nextId.incrementAndGet(), username, uuid));
+    }
+
+    // 修改已有记录的UUID，保留主键
+    void setWhitelistUuid(String username, String uuid) {
+        whitelist.computeIfPresent(username.toLowerCase(Locale.ROOT),
+                (key, row) -> new WhitelistRow(row.id(), row.username(), uuid));
+    }
+
+    void removeWhitelisted(String username) {
+        whitelist.remove(username.toLowerCase(Locale.ROOT));
+    }
+
+    void addTemporaryLogin(String username, String status) {
+        temporaryLogins.put(username.toLowerCase(Locale.ROOT), status);
+    }
+
+    void addGroupMember(String group, String username, String uuid) {
+        groupMembers.add(new GroupMember(group, username, uuid));
+    }
+
+    void setLatency(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    // 每个查询有 rate 的概率额外等待 slowMs
+    void setSlowQueries(double rate, long slowMs) {
+        this.slowRate = rate;
+        this.slowMs = slowMs;
+    }
+
+    // 每个查询有 rate 的概率不再返回，直到查询超时或 socketTimeout
+    void setHangRate(double rate) {
+        this.hangRate = rate;
+    }
+
+    // 每个查询有 rate 的概率遇到连接被重置
+    void setDropRate(double rate) {
+        this.dropRate = rate;
+    }
+
+    void setSocketTimeout(long socketTimeoutMs) {
+        this.socketTimeoutMs = socketTimeoutMs;
+    }
+
+    // 之后的 count 条写语句遇到连接被重置
+    void failNextWrites(int count) {
+        failingWrites.set(count);
+    }
+
+    boolean isWhitelisted(String username) {
+        return whitelist.containsKey(username.toLowerCase(Locale.ROOT));
+    }
+
+    String whitelistUuid(String username) {
+        WhitelistRow row = whitelist.get(username.toLowerCase(Locale.ROOT));
+        return row == null ? null : row.uuid();
+    }
+
+    Set<String> whitelistedUsernames() {
+        return Set.copyOf(whitelist.keySet());
+    }
+
+    String temporaryLoginStatus(String username) {
+        return temporaryLogins.get(username.toLowerCase(Locale.ROOT));
+    }
+
+    void healthy() {
+        latencyMs = 0;
+        slowRate = 0;
+        hangRate = 0;
+        dropRate = 0;
+    }
+
+    int openConnections() {
+        return openConnections.size();
+    }
+
+    int openStatements() {
+        return openStatements.get();
+    }
+
+    int queries() {
+        return queries.get();
+    }
+
+    int injectedHangs() {
+        return injectedHangs.get();
+    }
+
+    int injectedDrops() {
+        return injectedDrops.get();
+    }
+
+    @Override
+    public Connection getConnection() {
+        PhysicalConnection connection = new PhysicalConnection();
+        openConnections.add(connection);
+        return connection.proxy;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLException("Not a wrapper");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+
+    private List<Map<String, Object>> answer(String sql, Map<Integer, Object> params) throws SQLException {
+        String key = String.valueOf(params.get(1));
+        if (sql.startsWith("SELECT uuid FROM whitelist WHERE username = ?")) {
+            WhitelistRow row = whitelist.get(key.toLowerCase(Locale.ROOT));
+            return row == null ? List.of() : List.of(row("uuid", row.uuid()));
+        }
+        if (sql.startsWith("SELECT username FROM whitelist WHERE uuid = ?")) {
+            for (WhitelistRow row : whitelist.values()) {
+                if (key.equals(row.uuid())) {
+                    return List.of(row("username", row.username()));
+                }
+            }
+            return List.of();
+        }
+        if (sql.startsWith("SELECT username, uuid FROM whitelist WHERE username IN (")) {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (Object username : params.values()) {
+                WhitelistRow row = whitelist.get(String.valueOf(username).toLowerCase(Locale.ROOT));
+                if (row != null) {
+                    Map<String, Object> result = row("username", row.username());
+                    result.put("uuid", row.uuid());
+                    rows.add(result);
+                }
+            }
+            return rows;
+        }
+        if (sql.startsWith("SELECT id, username, uuid FROM whitelist WHERE id > ? ORDER BY id LIMIT ?") ||
+                sql.startsWith("SELECT id, username FROM whitelist WHERE id > ? ORDER BY id LIMIT ?")) {
+            long afterId = ((Number) params.get(1)).longValue();
+            int limit = ((Number) params.get(2)).intValue();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            whitelist.values().stream()
+                    .filter(row -> row.id() > afterId)
+                    .sorted(Comparator.comparingLong(WhitelistRow::id))
+                    .limit(limit)
+                    .forEach(row -> {
+                        Map<String, Object> result = row("id", row.id());
+                        result.put("username", row.username());
+                        result.put("uuid", row.uuid());
+                        rows.add(result);
+                    });
+            return rows;
+        }
+        if (sql.startsWith("SELECT id, username FROM whitelist WHERE uuid IS NULL AND id > ? ORDER BY id LIMIT ?")) {
+            long afterId = ((Number) params.get(1)).longValue();
+            int limit = ((Number) params.get(2)).intValue();
+            List<Map<String, Object>> rows = new ArrayList<>();
+            whitelist.values().stream()
+                    .filter(row -> row.uuid() == null && row.id() > afterId)
+                    .sorted(Comparator.comparingLong(WhitelistRow::id))
+                    .limit(limit)
+                    .forEach(row -> {
+                        Map<String, Object> result = row("id", row.id());
+                        result.put("username", row.username());
+                        rows.add(result);
+                    });
+            return rows;
+        }
+        if (sql.startsWith("SELECT status FROM temporarylogin WHERE username = ?")) {
+            String status = temporaryLogins.get(key.toLowerCase(Locale.ROOT));
+            return status == null ? List.of() : List.of(row("status", status));
+        }
+        if (sql.startsWith("SELECT group_name, username, uuid FROM whitelist_group")) {
+            List<Map<String, Object>> rows = new ArrayList<>();
+            for (GroupMember member : groupMembers) {
+                Map<String, Object> result = row("group_name", member.group());
+                result.put("username", member.username());
+                result.put("uuid", member.uuid());
+                rows.add(result);
+            }
+            return rows;
+        }
+        if (sql.equals("SELECT 1")) {
+            return List.of(row("1", 1));
+        }
+        throw new SQLSyntaxErrorException("Unexpected query: " + sql, "42000");
+    }
+
+    // 执行写语句，事务中的修改把撤销操作记录到 undo，回滚时按相反顺序执行
+    private synchronized int update(String sql, Map<Integer, Object> params, List<Runnable> undo) throws SQLException {
+        if (failingWrites.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            throw new SQLNonTransientConnectionException("Connection reset (injected)", "08S01");
+        }
+        int updated = 0;
+        if (sql.startsWith("INSERT INTO temporarylogin (username, status) VALUES ")) {
+            for (Object username : params.values()) {
+                String key = String.valueOf(username).toLowerCase(Locale.ROOT);
+                String previous = temporaryLogins.get(key);
+                if (previous == null || "timeout".equals(previous)) {
+                    temporaryLogins.put(key, "pending");
+                    undo.add(() -> restore(temporaryLogins, key, previous));
+                    updated++;
+                }
+            }
+            return updated;
+        }
+        if (sql.startsWith("UPDATE temporarylogin SET status = 'timeout' WHERE status = 'pending' AND username IN (")) {
+            for (Object username : params.values()) {
+                String key = String.valueOf(username).toLowerCase(Locale.ROOT);
+                if (temporaryLogins.replace(key, "pending", "timeout")) {
+                    undo.add(() -> temporaryLogins.put(key, "pending"));
+                    updated++;
+                }
+            }
+            return updated;
+        }
+        if (sql.startsWith("UPDATE whitelist SET username = ? WHERE uuid = ?")) {
+            String username = String.valueOf(params.get(1));
+            String newKey = username.toLowerCase(Locale.ROOT);
+            String uuid = String.valueOf(params.get(2));
+            for (WhitelistRow row : whitelist.values()) {
+                if (!uuid.equals(row.uuid())) {
+                    continue;
+                }
+                String oldKey = row.username().toLowerCase(Locale.ROOT);
+                if (!oldKey.equals(newKey) && whitelist.containsKey(newKey)) {
+                    throw new SQLIntegrityConstraintViolationException(
+                            "Duplicate entry '" + username + "' for key 'username'", "23000", 1062);
+                }
+                whitelist.remove(oldKey);
+                whitelist.put(newKey, new WhitelistRow(row.id(), username, uuid));
+                undo.add(() -> {
+                    whitelist.remove(newKey);
+                    whitelist.put(oldKey, row);
+                });
+                return 1;
+            }
+            return 0;
+        }
+        if (sql.startsWith("INSERT INTO whitelist (username, uuid) VALUES (?, ?) ON DUPLICATE KEY UPDATE uuid = VALUES(uuid)")) {
+            String username = String.valueOf(params.get(1));
+            String key = username.toLowerCase(Locale.ROOT);
+            String uuid = (String) params.get(2);
+            WhitelistRow previous = whitelist.get(key);
+            if (previous != null && Objects.equals(previous.uuid(), uuid)) {
+                return 0;
+            }
+            whitelist.put(key, previous != null
+                    ? new WhitelistRow(previous.id(), previous.username(), uuid)
+                    : new WhitelistRow(nextId.incrementAndGet(), username, uuid));
+            undo.add(() -> restore(whitelist, key, previous));
+            return previous != null ? 2 : 1;
+        }
+        if (sql.startsWith("UPDATE whitelist SET uuid = ? WHERE id = ? AND uuid IS NULL")) {
+            String uuid = String.valueOf(params.get(1));
+            long id = ((Number) params.get(2)).longValue();
+            for (WhitelistRow row : whitelist.values()) {
+                if (row.id() == id && row.uuid() == null) {
+                    String key = row.username().toLowerCase(Locale.ROOT);
+                    whitelist.put(key, new WhitelistRow(id, row.username(), uuid));
+                    undo.add(() -> whitelist.put(key, row));
+                    return 1;
+                }
+            }
+            return 0;
+        }
+        if (sql.startsWith("DELETE FROM whitelist WHERE id IN (")) {
+            Set<Object> ids = Set.copyOf(params.values());
+            for (WhitelistRow row : List.copyOf(whitelist.values())) {
+                if (ids.contains(row.id())) {
+                    String key = row.username().toLowerCase(Locale.ROOT);
+                    whitelist.remove(key);
+                    undo.add(() -> whitelist.put(key, row));
+                    updated++;
+                }
+            }
+            return updated;
+        }
+        throw new SQLSyntaxErrorException("Unexpected statement: " + sql, "42000");
+    }
+
+    private static <V> void restore(Map<String, V> table, String key, V previous) {
+        if (previous == null) {
+            table.remove(key);
+        } else {
+            table.put(key, previous);
+        }
+    }
+
+    private record WhitelistRow(long id, String username, String uuid) {
+    }
+
+    private record GroupMember(String group, String username, String uuid) {
+    }
+
+    private static Map<String, Object> row(String column, Object value) {
+        Map<String, Object> row = new HashMap<>();
+        row.put(column, value);
+        return row;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FaultInjectingDataSource.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private final class PhysicalConnection implements InvocationHandler {
+        private final Connection proxy = proxy(Connection.class, this);
+        private volatile boolean closed;
+        // 断开或超时后的连接不再可用，连接池应当丢弃它
+        private volatile boolean broken;
+        private boolean autoCommit = true;
+        private final List<Runnable> undo = new ArrayList<>();
+        private boolean readOnly;
+        private int networkTimeout;
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    checkOpen();
+                    return new FakeStatement(this, (String) args[0]).proxy;
+                case "createStatement":
+                    checkOpen();
+                    return new FakeStatement(this, null).proxy;
+                case "isValid":
+                    return !closed && !broken;
+                case "isClosed":
+                    return closed;
+                case "close":
+                    closed = true;
+                    openConnections.remove(this);
+                    return null;
+                case "abort":
+                    closed = true;
+                    disconnect();
+                    openConnections.remove(this);
+                    return null;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    // 和 JDBC 一样，重新开启自动提交时提交当前事务
+                    if ((Boolean) args[0]) {
+                        undo.clear();
+                    }
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "commit":
+                    undo.clear();
+                    return null;
+                case "rollback":
+                    for (int i = undo.size() - 1; i >= 0; i--) {
+                        undo.get(i).run();
+                    }
+                    undo.clear();
+                    return null;
+                case "isReadOnly":
+                    return readOnly;
+                case "setReadOnly":
+                    readOnly = (Boolean) args[0];
+                    return null;
+                case "getNetworkTimeout":
+                    return networkTimeout;
+                case "setNetworkTimeout":
+                    networkTimeout = (Integer) args[1];
+                    return null;
+                case "getTransactionIsolation":
+                    return Connection.TRANSACTION_REPEATABLE_READ;
+                case "isWrapperFor":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "equals":
+                    return self == args[0];
+                case "toString":
+                    return "FaultInjectingConnection@" + Integer.toHexString(System.identityHashCode(self));
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private void checkOpen() throws SQLException {
+            if (closed || broken) {
+                throw new SQLNonTransientConnectionException("Connection is closed", "08003");
+            }
+        }
+
+        // 连接断开后和服务器一样回滚未提交的事务
+        private void disconnect() {
+            broken = true;
+            synchronized (FaultInjectingDataSource.this) {
+                for (int i = undo.size() - 1; i >= 0; i--) {
+                    undo.get(i).run();
+                }
+                undo.clear();
+            }
+        }
+
+        // 自动提交时修改立即生效，不需要记录撤销操作
+        private List<Runnable> undoLog() {
+            return autoCommit ? new ArrayList<>() : undo;
+        }
+
+        // 按配置注入故障，queryTimeoutSeconds 为语句上设置的查询超时
+        private void execute(int queryTimeoutSeconds) throws SQLException {
+            checkOpen();
+            queries.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            pause(latencyMs);
+            double roll = random.nextDouble();
+            if (roll < dropRate) {
+                injectedDrops.incrementAndGet();
+                disconnect();
+                throw new SQLNonTransientConnectionException("Connection reset (injected)", "08S01");
+            }
+            if (roll < dropRate + hangRate) {
+                injectedHangs.incrementAndGet();
+                hang(queryTimeoutSeconds);
+            }
+            if (random.nextDouble() < slowRate) {
+                pause(slowMs);
+            }
+        }
+
+        // 和驱动一样：查询超时先到时只取消这条语句，socketTimeout 先到时连接不再可用
+        private void hang(int queryTimeoutSeconds) throws SQLException {
+            long queryTimeoutMs = TimeUnit.SECONDS.toMillis(queryTimeoutSeconds);
+            long socketTimeout = socketTimeoutMs;
+            if (queryTimeoutMs > 0 && (socketTimeout <= 0 || queryTimeoutMs <= socketTimeout)) {
+                pause(queryTimeoutMs);
+                throw new SQLTimeoutException("Query execution was interrupted (max_statement_time exceeded)", "70100");
+            }
+            if (socketTimeout > 0) {
+                pause(socketTimeout);
+                disconnect();
+                throw new SQLNonTransientConnectionException("Socket timeout (injected) after " + socketTimeout + "ms", "08000");
+            }
+            pause(Long.MAX_VALUE);
+            throw new SQLNonTransientConnectionException("Interrupted while waiting for the server", "08000");
+        }
+
+        private void pause(long millis) throws SQLException {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                disconnect();
+                throw new SQLNonTransientConnectionException("Interrupted while waiting for the server", "08000", e);
+            }
+        }
+    }
+
+    private final class FakeStatement implements InvocationHandler {
+        private final PreparedStatement proxy = proxy(PreparedStatement.class, this);
+        private final PhysicalConnection connection;
+        private final String sql;
+        private final Map<Integer, Object> params = new TreeMap<>();
+        private final List<Map<Integer, Object>> batch = new ArrayList<>();
+        private int queryTimeout;
+        private boolean closed;
+
+        private FakeStatement(PhysicalConnection connection, String sql) {
+            this.connection = connection;
+            this.sql = sql;
+            openStatements.incrementAndGet();
+        }
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "setString":
+                case "setObject":
+                case "setLong":
+                case "setInt":
+                    params.put((Integer) args[0], args[1]);
+                    return null;
+                case "setQueryTimeout":
+                    queryTimeout = (Integer) args[0];
+                    return null;
+                case "getQueryTimeout":
+                    return queryTimeout;
+                case "executeQuery":
+                    connection.execute(queryTimeout);
+                    return resultSet(answer(args != null && args.length > 0 ? (String) args[0] : sql, params));
+                case "execute":
+                    connection.execute(queryTimeout);
+                    return false;
+                case "executeUpdate":
+                    connection.execute(queryTimeout);
+                    return update(sql, params, connection.undoLog());
+                case "addBatch":
+                    batch.add(new TreeMap<>(params));
+                    return null;
+                case "clearBatch":
+                    batch.clear();
+                    return null;
+                case "executeBatch":
+                    connection.execute(queryTimeout);
+                    return executeBatch();
+                case "getConnection":
+                    return connection.proxy;
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        openStatements.decrementAndGet();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isWrapperFor":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "equals":
+                    return self == args[0];
+                case "toString":
+                    return "FaultInjectingStatement[" + sql + "]";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+
+        private int[] executeBatch() throws SQLException {
+            int[] counts = new int[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    counts[i] = update(sql, batch.get(i), connection.undoLog());
+                } catch (SQLException e) {
+                    throw new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), Arrays.copyOf(counts, i), e);
+                }
+            }
+            batch.clear();
+            return counts;
+        }
+
+        private ResultSet resultSet(List<Map<String, Object>> rows) {
+            int[] position = {-1};
+            return proxy(ResultSet.class, (self, method, args) -> {
+                switch (method.getName()) {
+                    case "next":
+                        return ++position[0] < rows.size();
+                    case "getString":
+                        Object value = rows.get(position[0]).get(String.valueOf(args[0]));
+                        return value == null ? null : String.valueOf(value);
+                    case "getObject":
+                        return rows.get(position[0]).get(String.valueOf(args[0]));
+                    case "getLong":
+                        return ((Number) rows.get(position[0]).get(String.valueOf(args[0]))).longValue();
+                    case "getStatement":
+                        return proxy;
+                    case "hashCode":
+                        return System.identityHashCode(self);
+                    case "equals":
+                        return self == args[0];
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            });
+        }
+    }
+}
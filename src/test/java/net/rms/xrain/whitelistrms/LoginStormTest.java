@@ -0,0 +1,419 @@
+package net.rms.xrain.whitelistrms;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 登录风暴：大量玩家同时登录时数据库变慢、断连或挂起，登录检查和写入队列都必须在超时设置允许的时间内结束，
+// 不能挂起、不能泄漏连接，也不能丢失写入。使用真实的 HikariCP 连接池、准入控制、登录查询和写入队列，
+// 通过插件使用的 LoginFlow 登录，只有数据库是模拟的
+class LoginStormTest {
+    private static final Logger LOGGER = NOPLogger.NOP_LOGGER;
+    private static final int POOL_SIZE = 10;
+    private static final int CONNECTION_TIMEOUT_MS = 1000;
+    private static final int QUERY_TIMEOUT_SECONDS = 1;
+    private static final int QUEUE_TIMEOUT_MS = 2000;
+    private static final int LOGIN_THREADS = 64;
+    private static final int WHITELISTED_PLAYERS = 1000;
+    // 已有待审核请求的玩家
+    private static final int PENDING_PLAYER = WHITELISTED_PLAYERS + 1;
+    // 风暴本身的上限，超过说明有登录检查挂起
+    private static final Duration STORM_DEADLINE = Duration.ofSeconds(60);
+    // 写入队列在故障仍然存在时写完所有操作的上限，超过说明写入挂起或操作丢失
+    private static final Duration WRITE_DEADLINE = Duration.ofSeconds(20);
+
+    private final FaultInjectingDataSource database = new FaultInjectingDataSource();
+    private final List<HikariDataSource> pools = new ArrayList<>();
+    // 临时登录请求的超时标记，风暴结束后统一执行，相当于审核时间已过
+    private final List<Runnable> scheduledTimeouts = Collections.synchronizedList(new ArrayList<>());
+    private ExecutorService loginThreads;
+    private ExecutorService writeThreads;
+
+    @TempDir
+    Path dataDirectory;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < WHITELISTED_PLAYERS; i++) {
+            database.addWhitelisted("player" + i, uuidFor(i).toString());
+        }
+        database.addTemporaryLogin("player" + PENDING_PLAYER, "pending");
+        loginThreads = Executors.newFixedThreadPool(LOGIN_THREADS);
+        writeThreads = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        loginThreads.shutdownNow();
+        writeThreads.shutdownNow();
+        pools.forEach(HikariDataSource::close);
+    }
+
+    @Test
+    void slowDatabaseKeepsP99WithinBudget() {
+        database.setLatency(2);
+        database.setSlowQueries(0.05, 50);
+        Plugin plugin = createPlugin("slow", 0, QUERY_TIMEOUT_SECONDS);
+
+        StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 2000));
+
+        assertEquals(List.of(), result.failures, "a slow database must not fail logins");
+        assertEquals(0, result.shed, "the admission queue must absorb the storm");
+        assertEquals(1000, result.whitelisted);
+        assertTrue(result.p99Millis() < 500, "p99 login latency was " + result.p99Millis() + "ms");
+        assertWritesComplete(plugin, result);
+        assertNoLeaks(plugin);
+    }
+
+    @Test
+    void hungQueriesAreCutOffByQueryTimeout() {
+        // 不设置 socketTimeout，挂起的查询和写入只能靠每条语句上的查询超时返回
+        database.setLatency(1);
+        database.setHangRate(0.01);
+        database.failNextWrites(3);
+        Plugin plugin = createPlugin("hang", 0, QUERY_TIMEOUT_SECONDS);
+
+        StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 1000));
+
+        assertTrue(database.injectedHangs() > 0);
+        assertFalse(result.failures.isEmpty());
+        for (Throwable failure : result.failures) {
+            assertTrue(failure instanceof SQLTimeoutException || failure instanceof SQLTransientConnectionException,
+                    "unexpected failure " + failure);
+        }
+        assertTrue(result.maxMillis() < QUEUE_TIMEOUT_MS + CONNECTION_TIMEOUT_MS + TimeUnit.SECONDS.toMillis(QUERY_TIMEOUT_SECONDS) + 1000,
+                "slowest login took " + result.maxMillis() + "ms");
+        assertWritesComplete(plugin, result);
+        assertNoLeaks(plugin);
+        assertRecovers(plugin);
+    }
+
+    @Test
+    void socketTimeoutFreesConnectionsWithoutQueryTimeout() {
+        // 查询超时关闭时（例如被 KILL QUERY 卡住），socketTimeout 是最后一道保护，超时的连接会被连接池丢弃
+        database.setLatency(1);
+        database.setHangRate(0.01);
+        database.setSocketTimeout(500);
+        Plugin plugin = createPlugin("socket", 0, 0);
+
+        StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 1000));
+
+        assertTrue(database.injectedHangs() > 0);
+        for (Throwable failure : result.failures) {
+            assertTrue(failure instanceof SQLNonTransientConnectionException || failure instanceof SQLTransientConnectionException,
+                    "unexpected failure " + failure);
+        }
+        assertTrue(result.maxMillis() < QUEUE_TIMEOUT_MS + CONNECTION_TIMEOUT_MS + 500 + 1000,
+                "slowest login took " + result.maxMillis() + "ms");
+        assertWritesComplete(plugin, result);
+        assertNoLeaks(plugin);
+        assertRecovers(plugin);
+    }
+
+    @Test
+    void droppedConnectionsAreReplacedWithoutLeaking() {
+        database.setLatency(1);
+        database.setDropRate(0.02);
+        database.failNextWrites(3);
+        Plugin plugin = createPlugin("drop", 0, QUERY_TIMEOUT_SECONDS);
+
+        StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 2000));
+
+        assertTrue(database.injectedDrops() > 0);
+        for (Throwable failure : result.failures) {
+            assertTrue(failure instanceof SQLNonTransientConnectionException, "unexpected failure " + failure);
+        }
+        assertWritesComplete(plugin, result);
+        assertNoLeaks(plugin);
+        assertRecovers(plugin);
+    }
+
+    @Test
+    void leakDetectionOnlyReportsConnectionsHeldPastThreshold() throws Exception {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream originalErr = System.err;
+        System.setErr(new PrintStream(new TeeOutputStream(originalErr, captured), true, StandardCharsets.UTF_8));
+        try {
+            database.setLatency(2);
+            Plugin plugin = createPlugin("leak", 2000, QUERY_TIMEOUT_SECONDS);
+
+            // 正常的登录检查和写入远低于阈值，不应产生泄漏警告
+            StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 1000));
+            assertEquals(List.of(), result.failures);
+            assertWritesComplete(plugin, result);
+            assertFalse(captured.toString(StandardCharsets.UTF_8).contains("leak detection triggered"));
+
+            // 借出后超过阈值未归还的连接会被报告
+            try (Connection held = plugin.pool.getConnection()) {
+                assertTrue(held.isValid(1));
+                awaitCondition(() -> captured.toString(StandardCharsets.UTF_8).contains("leak detection triggered"),
+                        Duration.ofSeconds(5));
+            }
+            assertNoLeaks(plugin);
+        } finally {
+            System.setErr(originalErr);
+        }
+    }
+
+    private HikariDataSource createPool(String name, long leakDetectionThreshold, int size) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("storm-" + name);
+        config.setDataSource(database);
+        config.setMaximumPoolSize(size);
+        config.setMinimumIdle(Math.min(2, size));
+        config.setConnectionTimeout(CONNECTION_TIMEOUT_MS);
+        config.setValidationTimeout(250);
+        config.setLeakDetectionThreshold(leakDetectionThreshold);
+        HikariDataSource pool = new HikariDataSource(config);
+        pools.add(pool);
+        return pool;
+    }
+
+    // 与插件相同的组装方式：登录查询使用登录连接池，写入队列使用维护连接池
+    private Plugin createPlugin(String name, long leakDetectionThreshold, int queryTimeout) {
+        HikariDataSource pool = createPool(name, leakDetectionThreshold, POOL_SIZE);
+        HikariDataSource maintenance = createPool(name + "-maintenance", leakDetectionThreshold, 2);
+        ShardRouter router = new ShardRouter(List.of(new ShardRouter.Shard("primary", pool, maintenance)));
+        WriteBehindQueue writeQueue = new WriteBehindQueue(LOGGER, maintenance, writeThreads, "whitelist", queryTimeout, 5, 500,
+                dataDirectory.resolve(name + "-pending-writes.txt"));
+        AdmissionController admission = new AdmissionController(POOL_SIZE, 2, POOL_SIZE * 2, 1000, QUEUE_TIMEOUT_MS, 250);
+        LoginFlow flow = new LoginFlow(LOGGER, admission,
+                new WhitelistLookup(LOGGER, router, "whitelist", queryTimeout), writeQueue,
+                (task, delay) -> scheduledTimeouts.add(task), "busy", 0);
+        return new Plugin(pool, maintenance, writeQueue, flow);
+    }
+
+    private StormResult storm(Plugin plugin, int logins) throws InterruptedException {
+        StormResult result = new StormResult();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < logins; i++) {
+            int player = i % (WHITELISTED_PLAYERS * 2);
+            futures.add(loginThreads.submit(() -> login(plugin.flow, player, result)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError("login task crashed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    // 与插件的 onLogin 相同：先取得准入许可，再在登录线程上检查。
+    // 每第10个白名单玩家用新用户名登录，通过UUID匹配并产生用户名更新
+    private void login(LoginFlow flow, int player, StormResult result) {
+        boolean renamed = player < WHITELISTED_PLAYERS && player % 10 == 0;
+        String username = renamed ? "renamed" + player : "player" + player;
+        long start = System.nanoTime();
+        LoginTrace trace = new LoginTrace(username);
+        LoginFlow.Decision decision;
+        try {
+            decision = flow.acquirePermit(trace)
+                    .handle((permit, e) -> flow.check(username, uuidFor(player), trace, permit, e))
+                    .get();
+        } catch (ExecutionException e) {
+            throw new AssertionError("login check crashed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        switch (decision.getOutcome()) {
+            case "shed":
+                assertTrue(decision.getFailure() instanceof RejectedExecutionException);
+                result.record(start, username, decision, null, false);
+                break;
+            case "error":
+                result.record(start, username, decision, decision.getFailure(), false);
+                break;
+            default:
+                assertEquals(player < WHITELISTED_PLAYERS, decision.isAllowed(), username + " " + decision.getOutcome());
+                if (player == PENDING_PLAYER) {
+                    assertEquals("pending", decision.getOutcome(), username);
+                }
+                result.record(start, username, decision, null, decision.isAllowed());
+        }
+    }
+
+    // 故障仍然存在时，写入队列也要在有限时间内写完风暴产生的请求和用户名更新，之后的超时标记同样写入
+    private void assertWritesComplete(Plugin plugin, StormResult result) {
+        awaitWritten(plugin.writeQueue);
+        for (String username : result.usernames("requested")) {
+            assertEquals("pending", database.temporaryLoginStatus(username), username);
+        }
+        for (String username : result.usernames("uuid-match")) {
+            assertTrue(database.isWhitelisted(username), username);
+        }
+
+        List<Runnable> timeouts;
+        synchronized (scheduledTimeouts) {
+            timeouts = new ArrayList<>(scheduledTimeouts);
+            scheduledTimeouts.clear();
+        }
+        timeouts.forEach(Runnable::run);
+        awaitWritten(plugin.writeQueue);
+        for (String username : result.usernames("requested")) {
+            assertEquals("timeout", database.temporaryLoginStatus(username), username);
+        }
+        assertEquals("pending", database.temporaryLoginStatus("player" + PENDING_PLAYER));
+    }
+
+    // 队列为空时可能还有一批操作正在写入，flush 会等待正在进行的写入结束，失败放回的操作由这次调用重新写入
+    // 计数为0时定时写入可能还在写最后一批，之后再调用一次 flush 等它完成
+    private static void awaitWritten(WriteBehindQueue writeQueue) {
+        awaitCondition(() -> {
+            writeQueue.flush();
+            return writeQueue.pendingCount() == 0 && writeQueue.flush();
+        }, WRITE_DEADLINE);
+    }
+
+    private void assertNoLeaks(Plugin plugin) {
+        for (HikariDataSource pool : List.of(plugin.pool, plugin.maintenance)) {
+            awaitCondition(() -> pool.getHikariPoolMXBean().getActiveConnections() == 0, Duration.ofSeconds(5));
+        }
+        assertEquals(0, database.openStatements(), "statements left open");
+        assertTrue(plugin.pool.getHikariPoolMXBean().getTotalConnections() <= POOL_SIZE);
+        // 断开或超时的连接被连接池关闭，不会留在数据库上
+        awaitCondition(() -> database.openConnections() == pools.stream()
+                .mapToInt(p -> p.getHikariPoolMXBean().getTotalConnections()).sum(), Duration.ofSeconds(5));
+    }
+
+    // 故障消失后连接池恢复，所有登录都能正常完成
+    private void assertRecovers(Plugin plugin) {
+        database.healthy();
+        StormResult result = assertTimeoutPreemptively(STORM_DEADLINE, () -> storm(plugin, 200));
+        assertEquals(List.of(), result.failures);
+        assertEquals(0, result.shed);
+        assertWritesComplete(plugin, result);
+        assertNoLeaks(plugin);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + timeout);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static UUID uuidFor(int player) {
+        return new UUID(0x5eedL, player);
+    }
+
+    private static class Plugin {
+        private final HikariDataSource pool;
+        private final HikariDataSource maintenance;
+        private final WriteBehindQueue writeQueue;
+        private final LoginFlow flow;
+
+        private Plugin(HikariDataSource pool, HikariDataSource maintenance, WriteBehindQueue writeQueue, LoginFlow flow) {
+            this.pool = pool;
+            this.maintenance = maintenance;
+            this.writeQueue = writeQueue;
+            this.flow = flow;
+        }
+    }
+
+    private static class StormResult {
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        // 检查结果 -> 用户名
+        private final Map<String, List<String>> outcomes = new HashMap<>();
+        private int whitelisted;
+        private int shed;
+
+        private synchronized void record(long startNanos, String username, LoginFlow.Decision decision, Throwable failure,
+                                         boolean whitelisted) {
+            latencies.add(System.nanoTime() - startNanos);
+            outcomes.computeIfAbsent(decision.getOutcome(), k -> new ArrayList<>()).add(username);
+            if (failure != null) {
+                failures.add(failure);
+            }
+            if (whitelisted) {
+                this.whitelisted++;
+            }
+            if ("shed".equals(decision.getOutcome())) {
+                this.shed++;
+            }
+        }
+
+        private synchronized List<String> usernames(String outcome) {
+            return new ArrayList<>(outcomes.getOrDefault(outcome, List.of()));
+        }
+
+        private synchronized long p99Millis() {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted.get((int) Math.ceil(sorted.size() * 0.99) - 1));
+        }
+
+        private synchronized long maxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(Collections.max(latencies));
+        }
+    }
+
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        private TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+    }
+}
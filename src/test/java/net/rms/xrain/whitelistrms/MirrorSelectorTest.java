@@ -0,0 +1,201 @@
+package net.rms.xrain.whitelistrms;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 用本地 HTTP 服务模拟各个镜像，检查对冲请求的胜出、取消、全部失败和排名
+class MirrorSelectorTest {
+    private static final String ORIGINAL_URL = "https://raw.githubusercontent.com/RMS-Server/whitelistRMS/master/plugin.version";
+    private static final Duration DEADLINE = Duration.ofSeconds(10);
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private ExecutorService executor;
+    private HttpClient httpClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        executor = Executors.newCachedThreadPool();
+        httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void firstSuccessfulResponseWins() {
+        CountDownLatch release = new CountDownLatch(1);
+        String slow = mirror("slow", exchange -> {
+            await(release);
+            respond(exchange, 200, "V 1.0.0");
+        });
+        String fast = mirror("fast", exchange -> respond(exchange, 200, "V 2.0.0"));
+        // 两个镜像同时发起，排在前面的镜像较慢
+        MirrorSelector selector = selector(List.of(slow, fast), 0);
+
+        MirrorSelector.MirrorResponse<String> winner = race(selector);
+        release.countDown();
+
+        assertEquals(fast, winner.getMirror());
+        assertEquals("V 2.0.0", winner.getResponse().body());
+        assertTrue(winner.getUrl().startsWith(fast + "/raw.githubusercontent.com/"), winner.getUrl());
+    }
+
+    @Test
+    void losersAreCancelled() throws InterruptedException {
+        AtomicInteger hedgedRequests = new AtomicInteger();
+        CountDownLatch loserAborted = new CountDownLatch(1);
+        // 响应头立即返回，响应体缓慢发送；胜出后请求被取消，继续写入会失败
+        String streaming = mirror("streaming", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream body = exchange.getResponseBody()) {
+                for (int i = 0; i < 200; i++) {
+                    body.write('x');
+                    body.flush();
+                    Thread.sleep(25);
+                }
+            } catch (IOException e) {
+                loserAborted.countDown();
+            }
+        });
+        String fast = mirror("fast", exchange -> respond(exchange, 200, "V 2.0.0"));
+        String hedged = mirror("hedged", exchange -> {
+            hedgedRequests.incrementAndGet();
+            respond(exchange, 200, "V 3.0.0");
+        });
+        // 依次在 0、1、2 秒发起请求：fast 在 1 秒时胜出，此时 streaming 仍在传输，hedged 尚未发起
+        MirrorSelector selector = selector(List.of(streaming, fast, hedged), 1000);
+
+        MirrorSelector.MirrorResponse<String> winner = race(selector);
+
+        assertEquals(fast, winner.getMirror());
+        assertTrue(loserAborted.await(5, TimeUnit.SECONDS), "the losing request was not cancelled");
+        Thread.sleep(1500);
+        assertEquals(0, hedgedRequests.get(), "a hedge was sent after the race was decided");
+        // 被取消的请求不计为镜像失败，不会进入冷却
+        assertEquals(streaming, selector.rankedMirrors().get(0));
+    }
+
+    @Test
+    void failsWhenEveryMirrorFails() {
+        String broken = mirror("broken", exchange -> respond(exchange, 500, "error"));
+        String missing = mirror("missing", exchange -> respond(exchange, 404, "not found"));
+        MirrorSelector selector = selector(List.of(broken, missing), 50);
+
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> assertTimeoutPreemptively(DEADLINE, () -> start(selector).get()));
+
+        assertTrue(failure.getCause() instanceof IOException, String.valueOf(failure.getCause()));
+        assertTrue(failure.getCause().getMessage().contains(ORIGINAL_URL));
+    }
+
+    @Test
+    void failedMirrorsCoolDownAndLatencyIsSmoothed() {
+        String flaky = mirror("flaky", exchange -> respond(exchange, 503, "busy"));
+        String healthy = mirror("healthy", exchange -> respond(exchange, 200, "V 2.0.0"));
+        MirrorSelector selector = selector(List.of(flaky, healthy), 200);
+
+        // 失败的镜像进入冷却，排到最后
+        assertEquals(healthy, race(selector).getMirror());
+        assertEquals(List.of(healthy, flaky), selector.rankedMirrors());
+
+        // 未冷却的镜像按平滑后的延迟排序，单次慢请求不会立刻改变排名
+        MirrorSelector ranking = selector(List.of("a", "b"), 0);
+        ranking.recordSuccess("a", 100);
+        ranking.recordSuccess("b", 50);
+        assertEquals(List.of("b", "a"), ranking.rankedMirrors());
+        ranking.recordSuccess("a", 10);
+        ranking.recordSuccess("a", 10);
+        assertEquals(List.of("b", "a"), ranking.rankedMirrors());
+        for (int i = 0; i < 5; i++) {
+            ranking.recordSuccess("a", 10);
+        }
+        assertEquals(List.of("a", "b"), ranking.rankedMirrors());
+
+        // 冷却中的镜像即使更快也排在后面，成功一次后恢复
+        ranking.recordFailure("a");
+        assertEquals(List.of("b", "a"), ranking.rankedMirrors());
+        ranking.recordSuccess("a", 10);
+        assertEquals(List.of("a", "b"), ranking.rankedMirrors());
+    }
+
+    private MirrorSelector selector(List<String> mirrors, long hedgeDelayMs) {
+        return new MirrorSelector(httpClient, NOPLogger.NOP_LOGGER, mirrors, hedgeDelayMs, executor);
+    }
+
+    private CompletableFuture<MirrorSelector.MirrorResponse<String>> start(MirrorSelector selector) {
+        return selector.race(ORIGINAL_URL,
+                url -> HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(5)).build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private MirrorSelector.MirrorResponse<String> race(MirrorSelector selector) {
+        return assertTimeoutPreemptively(DEADLINE, () -> start(selector).get());
+    }
+
+    // 注册一个镜像，返回按 custom-mirror-url 方式拼接的镜像地址
+    private String mirror(String name, Handler handler) {
+        server.createContext("/" + name, exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        latch.await(DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException, InterruptedException;
+    }
+}
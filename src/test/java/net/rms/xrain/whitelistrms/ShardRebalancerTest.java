@@ -0,0 +1,184 @@
+package net.rms.xrain.whitelistrms;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 分片副本同步：主库是唯一的权威数据，分片上只保留属于该分片、且主库中仍存在的记录
+class ShardRebalancerTest {
+    // 分片名 -> 该分片的数据库
+    private final Map<String, FaultInjectingDataSource> databases = new LinkedHashMap<>();
+    private final List<HikariDataSource> pools = new ArrayList<>();
+    private ShardRouter router;
+    private ShardRebalancer rebalancer;
+
+    @BeforeEach
+    void setUp() {
+        List<ShardRouter.Shard> shards = new ArrayList<>();
+        for (String name : List.of("primary", "shard2", "shard3")) {
+            FaultInjectingDataSource database = new FaultInjectingDataSource();
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("rebalance-" + name);
+            config.setDataSource(database);
+            config.setMaximumPoolSize(2);
+            config.setMinimumIdle(0);
+            HikariDataSource pool = new HikariDataSource(config);
+            pools.add(pool);
+            databases.put(name, database);
+            shards.add(new ShardRouter.Shard(name, pool, pool));
+        }
+        router = new ShardRouter(shards);
+        rebalancer = new ShardRebalancer(NOPLogger.NOP_LOGGER, router, "whitelist");
+    }
+
+    @AfterEach
+    void tearDown() {
+        pools.forEach(HikariDataSource::close);
+    }
+
+    @Test
+    void copiesPrimaryRowsToTheirHomeShards() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            primary().addWhitelisted("player" + i, "uuid-" + i);
+        }
+
+        rebalancer.rebalance();
+
+        // 主库保留全部记录，每个分片上只有属于它的副本
+        assertEquals(30, primary().whitelistedUsernames().size());
+        for (int i = 0; i < 30; i++) {
+            String username = "player" + i;
+            String home = router.shardFor(username).getName();
+            for (String name : List.of("shard2", "shard3")) {
+                assertEquals(name.equals(home), databases.get(name).isWhitelisted(username), username + " on " + name);
+            }
+        }
+        assertEquals(expectedCopies(), copies());
+    }
+
+    @Test
+    void secondRunWritesNothing() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            primary().addWhitelisted("player" + i, "uuid-" + i);
+        }
+        assertTrue(rebalancer.rebalance() > 0);
+
+        assertEquals(0, rebalancer.rebalance());
+    }
+
+    @Test
+    void changedUuidIsCopied() throws Exception {
+        String username = usernameOn("shard2");
+        primary().addWhitelisted(username, "uuid-old");
+        rebalancer.rebalance();
+
+        primary().addWhitelisted(username, "uuid-new");
+        assertEquals(1, rebalancer.rebalance());
+
+        assertEquals("uuid-new", databases.get("shard2").whitelistUuid(username));
+    }
+
+    @Test
+    void playerRemovedOnPrimaryIsRevokedOnTheShard() throws Exception {
+        String username = usernameOn("shard3");
+        primary().addWhitelisted(username, "uuid-1");
+        rebalancer.rebalance();
+        assertTrue(databases.get("shard3").isWhitelisted(username));
+
+        // 管理后台只删除主库上的记录
+        primary().removeWhitelisted(username);
+        assertEquals(1, rebalancer.rebalance());
+
+        assertFalse(databases.get("shard3").isWhitelisted(username));
+    }
+
+    @Test
+    void rowsOnTheWrongShardAreRemoved() throws Exception {
+        // 分片配置变化后留在旧分片上的副本
+        String username = usernameOn("shard2");
+        primary().addWhitelisted(username, "uuid-1");
+        databases.get("shard3").addWhitelisted(username, "uuid-1");
+
+        rebalancer.rebalance();
+
+        assertTrue(databases.get("shard2").isWhitelisted(username));
+        assertFalse(databases.get("shard3").isWhitelisted(username));
+        assertTrue(primary().isWhitelisted(username));
+    }
+
+    @Test
+    void pagesThroughMoreRowsThanOneChunk() throws Exception {
+        for (int i = 0; i < 1234; i++) {
+            primary().addWhitelisted("player" + i, "uuid-" + i);
+        }
+
+        rebalancer.rebalance();
+        assertEquals(expectedCopies(), copies());
+
+        for (int i = 0; i < 1234; i += 2) {
+            primary().removeWhitelisted("player" + i);
+        }
+        rebalancer.rebalance();
+        assertEquals(expectedCopies(), copies());
+    }
+
+    @Test
+    void unshardedRouterHasNothingToSync() throws Exception {
+        primary().addWhitelisted("player0", "uuid-0");
+        ShardRebalancer unsharded = new ShardRebalancer(NOPLogger.NOP_LOGGER,
+                new ShardRouter(List.of(router.getPrimary())), "whitelist");
+
+        assertEquals(0, unsharded.rebalance());
+        assertEquals(0, primary().queries());
+    }
+
+    private FaultInjectingDataSource primary() {
+        return databases.get("primary");
+    }
+
+    // 按主库记录计算每个非主库分片上应有的副本："分片名/小写用户名"
+    private Set<String> expectedCopies() {
+        Set<String> expected = new TreeSet<>();
+        for (String username : primary().whitelistedUsernames()) {
+            String home = router.shardFor(username).getName();
+            if (!home.equals("primary")) {
+                expected.add(home + "/" + username);
+            }
+        }
+        return expected;
+    }
+
+    private Set<String> copies() {
+        Set<String> copies = new TreeSet<>();
+        for (String name : List.of("shard2", "shard3")) {
+            for (String username : databases.get(name).whitelistedUsernames()) {
+                copies.add(name + "/" + username);
+            }
+        }
+        return copies;
+    }
+
+    // 找到一个落在指定分片上的用户名
+    private String usernameOn(String shard) {
+        for (int i = 0; ; i++) {
+            String username = "player" + i;
+            if (router.shardFor(username).getName().equals(shard)) {
+                return username;
+            }
+        }
+    }
+}
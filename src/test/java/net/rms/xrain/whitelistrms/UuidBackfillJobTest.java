@@ -0,0 +1,184 @@
+package net.rms.xrain.whitelistrms;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// 用本地 HTTP 服务模拟Mojang批量查询接口，检查按主键分页、未找到玩家的缓存、限流时停止和只更新 uuid 为空的记录
+class UuidBackfillJobTest {
+    private final FaultInjectingDataSource database = new FaultInjectingDataSource();
+    // 小写用户名 -> 接口返回的无横线UUID
+    private final Map<String, String> profiles = new ConcurrentHashMap<>();
+    // 每次查询请求中的用户名
+    private final List<List<String>> lookups = new CopyOnWriteArrayList<>();
+    // 接下来这么多次请求返回 429
+    private final AtomicInteger rateLimited = new AtomicInteger();
+    // 每次查询请求时执行，模拟补全过程中管理员修改记录
+    private volatile Runnable onLookup = () -> { };
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private UuidBackfillJob job;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/lookup", this::lookup);
+        server.start();
+        job = new UuidBackfillJob(NOPLogger.NOP_LOGGER, database, HttpClient.newHttpClient(), "whitelist",
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/lookup", 3, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void pagesThroughAllChunksByPrimaryKey() {
+        // 已有UUID的记录穿插在中间，不会被读取
+        for (int i = 0; i < 8; i++) {
+            database.addWhitelisted("player" + i, null);
+            profiles.put("player" + i, hex(i));
+            database.addWhitelisted("known" + i, "uuid-known" + i);
+        }
+
+        job.run();
+
+        // 每页3条，共3页
+        assertEquals(List.of(
+                List.of("player0", "player1", "player2"),
+                List.of("player3", "player4", "player5"),
+                List.of("player6", "player7")), lookups);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(UuidBackfillJob.formatUuid(hex(i)), database.whitelistUuid("player" + i));
+            assertEquals("uuid-known" + i, database.whitelistUuid("known" + i));
+        }
+    }
+
+    @Test
+    void missingProfilesAreCachedAndSkipped() {
+        // 未找到的玩家始终为空，分页仍然前进到后面的记录
+        database.addWhitelisted("ghost1", null);
+        database.addWhitelisted("ghost2", null);
+        database.addWhitelisted("ghost3", null);
+        database.addWhitelisted("player0", null);
+        profiles.put("player0", hex(0));
+
+        job.run();
+        assertEquals(2, lookups.size());
+        assertNull(database.whitelistUuid("ghost1"));
+        assertEquals(UuidBackfillJob.formatUuid(hex(0)), database.whitelistUuid("player0"));
+
+        // 下一轮不再查询已知不存在的玩家
+        job.run();
+        assertEquals(2, lookups.size());
+    }
+
+    @Test
+    void rateLimitStopsTheRunUntilTheNextOne() {
+        for (int i = 0; i < 6; i++) {
+            database.addWhitelisted("player" + i, null);
+            profiles.put("player" + i, hex(i));
+        }
+        rateLimited.set(1);
+
+        job.run();
+        // 第一页就被限流，不继续后面的页，也不写入
+        assertEquals(1, lookups.size());
+        for (int i = 0; i < 6; i++) {
+            assertNull(database.whitelistUuid("player" + i));
+        }
+
+        job.run();
+        assertEquals(3, lookups.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(UuidBackfillJob.formatUuid(hex(i)), database.whitelistUuid("player" + i));
+        }
+    }
+
+    @Test
+    void updateSkipsRowsFilledInWhileLookingUp() {
+        database.addWhitelisted("player0", null);
+        database.addWhitelisted("player1", null);
+        profiles.put("player0", hex(0));
+        profiles.put("player1", hex(1));
+        // 读取之后、写回之前管理员已经填写了 player1 的UUID
+        onLookup = () -> database.setWhitelistUuid("player1", "uuid-admin");
+
+        job.run();
+
+        assertEquals(UuidBackfillJob.formatUuid(hex(0)), database.whitelistUuid("player0"));
+        assertEquals("uuid-admin", database.whitelistUuid("player1"));
+    }
+
+    private void lookup(HttpExchange exchange) throws IOException {
+        try {
+            List<String> names = new ArrayList<>();
+            for (JsonElement element : JsonParser.parseString(
+                    new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getAsJsonArray()) {
+                names.add(element.getAsString());
+            }
+            lookups.add(names);
+            onLookup.run();
+            if (rateLimited.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                respond(exchange, 429, "{\"error\":\"TooManyRequestsException\"}");
+                return;
+            }
+            JsonArray found = new JsonArray();
+            for (String name : names) {
+                String id = profiles.get(name.toLowerCase(Locale.ROOT));
+                if (id != null) {
+                    JsonObject profile = new JsonObject();
+                    profile.addProperty("id", id);
+                    profile.addProperty("name", name);
+                    found.add(profile);
+                }
+            }
+            respond(exchange, 200, found.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String hex(int i) {
+        return String.format("%032x", i + 1);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.rms.xrain.whitelistrms;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 分组索引：只加载配置中用到的分组，服务器名、分组名和用户名都不区分大小写
+class WhitelistGroupIndexTest {
+    private static final UUID PLAYER_UUID = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+
+    private final FaultInjectingDataSource database = new FaultInjectingDataSource();
+    private final WhitelistGroupIndex index = new WhitelistGroupIndex(NOPLogger.NOP_LOGGER,
+            Map.of("Survival", "Builders", "creative", "creative"));
+
+    @Test
+    void serverNamesAreMatchedIgnoringCase() {
+        assertEquals("Builders", index.getGroupForServer("survival"));
+        assertEquals("Builders", index.getGroupForServer("SURVIVAL"));
+        assertEquals("creative", index.getGroupForServer("Creative"));
+        assertNull(index.getGroupForServer("lobby"));
+        assertTrue(index.hasMappedServers());
+    }
+
+    @Test
+    void nothingIsAMemberBeforeTheFirstLoad() {
+        database.addGroupMember("Builders", "player1", null);
+
+        assertFalse(index.isLoaded());
+        assertFalse(index.isMember("Builders", "player1", null));
+    }
+
+    @Test
+    void groupNamesFromTheDatabaseMatchTheConfigIgnoringCase() throws Exception {
+        // 管理后台写入的分组名大小写和配置不同
+        database.addGroupMember("builders", "player1", null);
+        database.addGroupMember("BUILDERS", "player2", null);
+        database.addGroupMember("Creative", "player3", null);
+        reload();
+
+        assertTrue(index.isLoaded());
+        assertTrue(index.isMember("Builders", "player1", null));
+        assertTrue(index.isMember("Builders", "player2", null));
+        assertTrue(index.isMember("creative", "player3", null));
+        assertFalse(index.isMember("creative", "player1", null));
+    }
+
+    @Test
+    void membersAreMatchedByUsernameOrUuid() throws Exception {
+        database.addGroupMember("Builders", "Player1", PLAYER_UUID.toString().toUpperCase());
+        reload();
+
+        assertTrue(index.isMember("Builders", "player1", null));
+        // 改名后按UUID匹配
+        assertTrue(index.isMember("Builders", "newname", PLAYER_UUID));
+        assertFalse(index.isMember("Builders", "someone", UUID.randomUUID()));
+    }
+
+    @Test
+    void groupsNotMappedToAServerAreNotLoaded() throws Exception {
+        database.addGroupMember("admins", "player1", PLAYER_UUID.toString());
+        reload();
+
+        assertFalse(index.isMember("admins", "player1", PLAYER_UUID));
+    }
+
+    @Test
+    void reloadReplacesTheSnapshot() throws Exception {
+        database.addGroupMember("Builders", "player1", null);
+        reload();
+        database.addGroupMember("Builders", "player2", null);
+
+        // 刷新前仍使用上次加载的成员
+        assertFalse(index.isMember("Builders", "player2", null));
+        reload();
+        assertTrue(index.isMember("Builders", "player2", null));
+    }
+
+    private void reload() throws Exception {
+        try (Connection conn = database.getConnection()) {
+            index.reload(conn);
+        }
+    }
+}
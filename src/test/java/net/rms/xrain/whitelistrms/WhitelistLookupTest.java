@@ -0,0 +1,150 @@
+package net.rms.xrain.whitelistrms;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.helpers.NOPLogger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 分片模式下的登录查询：先查询用户名所在分片上的副本，未找到时回退到主库，每次最多访问两个数据库
+class WhitelistLookupTest {
+    private static final UUID PLAYER_UUID = UUID.fromString("069a79f4-44e9-4726-a5be-fca90e38aaf5");
+
+    // 分片名 -> 该分片的数据库
+    private final Map<String, FaultInjectingDataSource> databases = new LinkedHashMap<>();
+    private final List<HikariDataSource> pools = new ArrayList<>();
+    private ShardRouter router;
+    private WhitelistLookup lookup;
+
+    @BeforeEach
+    void setUp() {
+        List<ShardRouter.Shard> shards = new ArrayList<>();
+        for (String name : List.of("primary", "shard2", "shard3", "shard4")) {
+            FaultInjectingDataSource database = new FaultInjectingDataSource();
+            HikariConfig config = new HikariConfig();
+            config.setPoolName("lookup-" + name);
+            config.setDataSource(database);
+            config.setMaximumPoolSize(2);
+            config.setMinimumIdle(0);
+            HikariDataSource pool = new HikariDataSource(config);
+            pools.add(pool);
+            databases.put(name, database);
+            shards.add(new ShardRouter.Shard(name, pool, pool));
+        }
+        router = new ShardRouter(shards);
+        lookup = new WhitelistLookup(NOPLogger.NOP_LOGGER, router, "whitelist", 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pools.forEach(HikariDataSource::close);
+    }
+
+    @Test
+    void copyOnTheHomeShardAnswersWithoutThePrimary() throws Exception {
+        String username = usernameOn("shard2");
+        databases.get("primary").addWhitelisted(username, PLAYER_UUID.toString());
+        databases.get("shard2").addWhitelisted(username, PLAYER_UUID.toString());
+
+        WhitelistLookup.Result result = lookup.lookup(username, PLAYER_UUID, new LoginTrace(username));
+
+        assertTrue(result.isWhitelisted());
+        assertSame(shard("shard2"), result.getMatchedShard());
+        assertQueried("shard2");
+    }
+
+    @Test
+    void entryAddedOnPrimaryIsFoundBeforeItIsSynced() throws Exception {
+        String username = usernameOn("shard2");
+        databases.get("primary").addWhitelisted(username, PLAYER_UUID.toString());
+
+        WhitelistLookup.Result result = lookup.lookup(username, PLAYER_UUID, new LoginTrace(username));
+
+        assertTrue(result.isWhitelisted());
+        assertSame(router.getPrimary(), result.getMatchedShard());
+        assertNull(result.getOldUsername());
+        assertQueried("shard2", "primary");
+    }
+
+    @Test
+    void renamedPlayerIsMatchedByUuidOnThePrimary() throws Exception {
+        String username = usernameOn("shard3");
+        // 旧用户名的记录还没有同步到分片
+        databases.get("primary").addWhitelisted("oldname", PLAYER_UUID.toString());
+
+        WhitelistLookup.Result result = lookup.lookup(username, PLAYER_UUID, new LoginTrace(username));
+
+        assertTrue(result.isWhitelisted());
+        assertEquals("oldname", result.getOldUsername());
+        assertNull(result.getTemporaryStatus());
+        assertSame(router.getPrimary(), result.getMatchedShard());
+        assertQueried("shard3", "primary");
+    }
+
+    @Test
+    void unknownPlayerOnlyQueriesHomeShardAndPrimary() throws Exception {
+        String username = usernameOn("shard4");
+        databases.get("primary").addTemporaryLogin(username, "approved");
+
+        WhitelistLookup.Result result = lookup.lookup(username, PLAYER_UUID, new LoginTrace(username));
+
+        assertFalse(result.isWhitelisted());
+        assertNull(result.getMatchedShard());
+        // 临时登录请求只保存在主库
+        assertEquals("approved", result.getTemporaryStatus());
+        assertQueried("shard4", "primary");
+    }
+
+    @Test
+    void unshardedLookupMatchesUuidOnTheOnlyShard() throws Exception {
+        FaultInjectingDataSource database = databases.get("primary");
+        database.addWhitelisted("oldname", PLAYER_UUID.toString());
+        WhitelistLookup unsharded = new WhitelistLookup(NOPLogger.NOP_LOGGER,
+                new ShardRouter(List.of(router.getPrimary())), "whitelist", 3);
+
+        WhitelistLookup.Result result = unsharded.lookup("newname", PLAYER_UUID, new LoginTrace("newname"));
+
+        assertTrue(result.isWhitelisted());
+        assertSame(router.getPrimary(), result.getMatchedShard());
+        assertEquals("oldname", result.getOldUsername());
+        // 按用户名、按UUID各一次，不查询索引和临时登录请求
+        assertEquals(2, database.queries());
+    }
+
+    // 找到一个落在指定分片上的用户名
+    private String usernameOn(String shard) {
+        for (int i = 0; ; i++) {
+            String username = "player" + i;
+            if (router.shardFor(username).getName().equals(shard)) {
+                return username;
+            }
+        }
+    }
+
+    private ShardRouter.Shard shard(String name) {
+        return router.getShards().get(List.copyOf(databases.keySet()).indexOf(name));
+    }
+
+    private void assertQueried(String... shards) {
+        List<String> queried = new ArrayList<>();
+        databases.forEach((name, database) -> {
+            if (database.queries() > 0) {
+                queried.add(name);
+            }
+        });
+        assertEquals(List.of(shards).stream().sorted().toList(), queried.stream().sorted().toList());
+    }
+}
@@ -0,0 +1,126 @@
+package net.rms.xrain.whitelistrms;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.helpers.NOPLogger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// 写入队列的合并、重试和丢弃规则。定时写入被丢弃，由测试直接调用 flush
+class WriteBehindQueueTest {
+    private final FaultInjectingDataSource database = new FaultInjectingDataSource();
+
+    @TempDir
+    Path dataDirectory;
+
+    private WriteBehindQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        database.addWhitelisted("alice", "uuid-alice");
+        database.addWhitelisted("bob", "uuid-bob");
+        database.addWhitelisted("carol", "uuid-carol");
+        queue = newQueue();
+    }
+
+    @Test
+    void renameThatViolatesUniqueUsernameIsDroppedAndOthersAreWritten() {
+        // alice 改名为已被 bob 使用的用户名，重试也不会成功
+        queue.rename("uuid-alice", "bob");
+        queue.rename("uuid-carol", "carol2");
+        queue.requestTemporaryLogin("dave");
+
+        assertTrue(queue.flush());
+
+        assertEquals(0, queue.pendingCount());
+        assertTrue(database.isWhitelisted("alice"));
+        assertTrue(database.isWhitelisted("carol2"));
+        assertFalse(database.isWhitelisted("carol"));
+        assertEquals("pending", database.temporaryLoginStatus("dave"));
+    }
+
+    @Test
+    void failedTemporaryLoginWriteDoesNotBlockRenames() {
+        // 两组操作在独立的事务中写入，失败后只有失败的一组被放回队列
+        queue.requestTemporaryLogin("erin");
+        queue.rename("uuid-bob", "bob2");
+        // 第一条写语句是临时登录请求，第二条是用户名更新
+        database.failNextWrites(1);
+        assertFalse(queue.flush());
+        assertNull(database.temporaryLoginStatus("erin"));
+        assertTrue(database.isWhitelisted("bob2"));
+        assertEquals(1, queue.pendingCount());
+
+        assertTrue(queue.flush());
+        assertEquals("pending", database.temporaryLoginStatus("erin"));
+        assertEquals(0, queue.pendingCount());
+    }
+
+    @Test
+    void connectionFailureRequeuesTheWholeBatch() {
+        queue.requestTemporaryLogin("dave");
+        queue.rename("uuid-carol", "carol2");
+        database.failNextWrites(2);
+
+        assertFalse(queue.flush());
+        assertEquals(2, queue.pendingCount());
+        assertNull(database.temporaryLoginStatus("dave"));
+
+        assertTrue(queue.flush());
+        assertEquals("pending", database.temporaryLoginStatus("dave"));
+        assertTrue(database.isWhitelisted("carol2"));
+    }
+
+    @Test
+    void timeoutAfterAFailedWriteDoesNotLoseTheRequest() {
+        queue.requestTemporaryLogin("dave");
+        database.failNextWrites(1);
+        assertFalse(queue.flush());
+
+        // 数据库恢复前请求已到期，写入时先创建请求再标记为超时
+        queue.markTimeout("dave");
+        assertTrue(queue.flush());
+
+        assertEquals("timeout", database.temporaryLoginStatus("dave"));
+    }
+
+    @Test
+    void requestAfterTimeoutReopensTheRequest() {
+        queue.markTimeout("dave");
+        queue.requestTemporaryLogin("dave");
+        assertTrue(queue.flush());
+
+        assertEquals("pending", database.temporaryLoginStatus("dave"));
+    }
+
+    @Test
+    void expiredRequestSurvivesShutdownSpill() throws Exception {
+        queue.requestTemporaryLogin("dave");
+        queue.markTimeout("dave");
+        queue.rename("uuid-carol", "carol2");
+        database.failNextWrites(Integer.MAX_VALUE);
+        queue.close();
+        assertTrue(Files.readAllLines(dataDirectory.resolve("pending-writes.txt")).contains("expired dave"));
+
+        database.failNextWrites(0);
+        WriteBehindQueue restarted = newQueue();
+        restarted.replaySpilled();
+        assertTrue(restarted.flush());
+
+        assertEquals("timeout", database.temporaryLoginStatus("dave"));
+        assertTrue(database.isWhitelisted("carol2"));
+        assertFalse(Files.exists(dataDirectory.resolve("pending-writes.txt")));
+    }
+
+    private WriteBehindQueue newQueue() {
+        return new WriteBehindQueue(NOPLogger.NOP_LOGGER, database, task -> { }, "whitelist", 3, 5, 500,
+                dataDirectory.resolve("pending-writes.txt"));
+    }
+}